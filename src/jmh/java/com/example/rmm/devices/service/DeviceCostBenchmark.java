@@ -0,0 +1,89 @@
+package com.example.rmm.devices.service;
+
+import com.example.rmm.devices.repository.Device;
+import com.example.rmm.services.controller.dtos.FullServiceData;
+import com.example.rmm.services.repository.Service;
+import com.example.rmm.services.repository.ServiceRepository;
+import com.example.rmm.services.service.ServiceCatalog;
+import com.example.rmm.services.service.ServiceMapper;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.openjdk.jmh.annotations.*;
+
+import java.lang.reflect.Proxy;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.LongStream;
+
+/**
+ * Cost of summing the price of the services of a single device, from the JPA entities
+ * and from the DTOs, and of reading it from the subscriptions index, as done when a
+ * device is found and its cost is not cached. Reading the cache is measured by
+ * {@link LocalCacheBenchmark}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class DeviceCostBenchmark {
+
+    @Param({"1", "5", "20"})
+    private int services;
+
+    private Device device;
+    private List<FullServiceData> servicesData;
+    private DeviceSubscriptionIndex subscriptionIndex;
+
+    @Setup
+    public void setUp() {
+        final var deviceServices = LongStream.rangeClosed(1, this.services)
+                                             .mapToObj(DeviceCostBenchmark::newService)
+                                             .toList();
+        this.device = new Device("Server1", "WINDOWS_SERVER", 1L);
+        this.device.addServices(deviceServices);
+        this.servicesData = deviceServices.stream().map(ServiceMapper::serviceToFullServiceData).toList();
+
+        // Index the device, with a catalog loading the services from memory
+        final var serviceRepository = (ServiceRepository) Proxy.newProxyInstance(
+                ServiceRepository.class.getClassLoader(),
+                new Class<?>[]{ServiceRepository.class},
+                (proxy, method, args) -> {
+                    if (method.getName().equals("findAll") && args == null) return deviceServices;
+                    throw new UnsupportedOperationException(method.getName());
+                }
+        );
+        this.subscriptionIndex = new DeviceSubscriptionIndex(null, new ServiceCatalog(serviceRepository), new SimpleMeterRegistry());
+        this.subscriptionIndex.put(1L, 0, deviceServices.stream().map(Service::getId).toList());
+        // Build the prices vector before measuring
+        this.subscriptionIndex.findCost(1L);
+    }
+
+    @Benchmark
+    public double sumEntities() {
+        return this.device.getServicesCost();
+    }
+
+    @Benchmark
+    public double sumServicesData() {
+        return this.servicesData.stream().mapToDouble(FullServiceData::price).sum();
+    }
+
+    @Benchmark
+    public double indexCost() {
+        return this.subscriptionIndex.findCost(1L).orElseThrow();
+    }
+
+    @Benchmark
+    public double mapAndSum() {
+        return this.device.getServices()
+                          .stream()
+                          .map(ServiceMapper::serviceToFullServiceData)
+                          .mapToDouble(FullServiceData::price)
+                          .sum();
+    }
+
+    private static Service newService(final long id) {
+        final var service = new Service("Service " + id, (float) id);
+        service.setId(id);
+        service.setVersion(0L);
+        return service;
+    }
+}
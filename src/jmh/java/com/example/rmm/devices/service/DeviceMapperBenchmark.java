@@ -0,0 +1,36 @@
+package com.example.rmm.devices.service;
+
+import com.example.rmm.devices.controller.dtos.FullDeviceData;
+import com.example.rmm.devices.repository.Device;
+import com.example.rmm.services.controller.dtos.FullServiceData;
+import com.example.rmm.services.repository.Service;
+import com.example.rmm.services.service.ServiceMapper;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.LongStream;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class DeviceMapperBenchmark {
+
+    private Device device;
+    private List<FullServiceData> services;
+
+    @Setup
+    public void setUp() {
+        this.device = new Device("Server1", "WINDOWS_SERVER", 1L);
+        this.device.setId(1L);
+        this.services = LongStream.rangeClosed(1, 5)
+                                  .mapToObj(id -> new Service("Service " + id, (float) id))
+                                  .map(ServiceMapper::serviceToFullServiceData)
+                                  .toList();
+    }
+
+    @Benchmark
+    public FullDeviceData deviceToFullDeviceData() {
+        return DeviceMapper.deviceToFullDeviceData(this.device, this.services, 15.0);
+    }
+}
@@ -0,0 +1,66 @@
+package com.example.rmm.devices.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of the device cost cache when read and written concurrently.
+ * Puts measure enqueuing the update, which is applied by the cache update stripes.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class LocalCacheBenchmark {
+
+    @Param({"10000", "1000000"})
+    private int devices;
+
+    private LocalCache cache;
+
+    @Setup
+    public void setUp() {
+        this.cache = new LocalCache(100_000, null, 4, 10_000, false, new SimpleMeterRegistry());
+        for (long id = 0; id < this.devices; id++) {
+            final var cost = (double) id;
+            this.cache.put(id, () -> cost);
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws InterruptedException {
+        this.cache.shutdown();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public Double get() {
+        return this.cache.get(randomDeviceId(), () -> 4.0);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void put() {
+        this.cache.put(randomDeviceId(), () -> 4.0);
+    }
+
+    @Benchmark
+    @Group("readMostly")
+    @GroupThreads(3)
+    public Double readMostlyGet() {
+        return this.cache.get(randomDeviceId(), () -> 4.0);
+    }
+
+    @Benchmark
+    @Group("readMostly")
+    @GroupThreads(1)
+    public void readMostlyPut() {
+        this.cache.put(randomDeviceId(), () -> 4.0);
+    }
+
+    private long randomDeviceId() {
+        return ThreadLocalRandom.current().nextLong(this.devices);
+    }
+}
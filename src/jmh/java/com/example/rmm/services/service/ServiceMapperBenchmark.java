@@ -0,0 +1,26 @@
+package com.example.rmm.services.service;
+
+import com.example.rmm.services.controller.dtos.FullServiceData;
+import com.example.rmm.services.repository.Service;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class ServiceMapperBenchmark {
+
+    private Service service;
+
+    @Setup
+    public void setUp() {
+        this.service = new Service("Backup", 3f);
+        this.service.setId(4L);
+    }
+
+    @Benchmark
+    public FullServiceData serviceToFullServiceData() {
+        return ServiceMapper.serviceToFullServiceData(this.service);
+    }
+}
@@ -0,0 +1,243 @@
+package com.example.rmm.loadtest;
+
+import com.example.rmm.Application;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import org.HdrHistogram.ConcurrentHistogram;
+import org.HdrHistogram.Histogram;
+import org.springframework.boot.SpringApplication;
+import org.springframework.boot.web.context.WebServerApplicationContext;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.IntStream;
+
+/**
+ * Closed-loop load test of the REST API, run against the embedded application and H2.
+ * <p>
+ * A fixed number of workers send a mix of device saves, services modifications and
+ * device reads as fast as they can. The latency percentiles and the throughput of each
+ * operation are printed and stored as JSON, so that releases can be compared.
+ * <p>
+ * Configured through system properties, see {@link Settings}. Run with {@code ./gradlew loadTest}.
+ */
+public final class LoadTest {
+
+    private static final long CUSTOMER_ID = 1L;
+    private static final long[] OPTIONAL_SERVICES_IDS = {2L, 3L, 4L, 5L};
+
+    private final Settings settings;
+    private final HttpClient client;
+    private final URI baseUri;
+    private final ObjectMapper objectMapper = new ObjectMapper().findAndRegisterModules();
+    private final List<Long> devicesIds = new CopyOnWriteArrayList<>();
+    private final AtomicLong devicesCount = new AtomicLong();
+    private final Map<Operation, Histogram> latencies = new EnumMap<>(Operation.class);
+    private final Map<Operation, AtomicLong> errors = new EnumMap<>(Operation.class);
+
+    private LoadTest(final Settings settings, final int port) {
+        this.settings = settings;
+        this.baseUri = URI.create("http://localhost:" + port);
+        this.client = HttpClient.newBuilder().executor(Executors.newVirtualThreadPerTaskExecutor()).build();
+        for (final var operation : Operation.values()) {
+            this.latencies.put(operation, new ConcurrentHistogram(3));
+            this.errors.put(operation, new AtomicLong());
+        }
+    }
+
+    public static void main(final String[] args) throws Exception {
+        final var settings = Settings.fromSystemProperties();
+        final var context = SpringApplication.run(
+                Application.class,
+                "--server.port=0",
+                "--spring.jpa.show-sql=false",
+                "--logging.level.root=WARN",
+                "--logging.level.com.example.rmm=WARN",
+                "--spring.profiles.active=" + settings.profiles()
+        );
+        try {
+            final var port = ((WebServerApplicationContext) context).getWebServer().getPort();
+            final var loadTest = new LoadTest(settings, port);
+            loadTest.seed();
+            loadTest.run(settings.warmUp());
+            loadTest.reset();
+            final var elapsed = loadTest.run(settings.duration());
+            loadTest.report(elapsed);
+        } finally {
+            context.close();
+        }
+    }
+
+    /**
+     * Saves the initial devices, so that reads and modifications have something to work on.
+     */
+    private void seed() throws IOException, InterruptedException {
+        for (int i = 0; i < this.settings.initialDevices(); i++) saveDevice();
+    }
+
+    private Duration run(final Duration duration) throws InterruptedException {
+        final var deadline = System.nanoTime() + duration.toNanos();
+        final var start = System.nanoTime();
+        try (final var workers = Executors.newFixedThreadPool(this.settings.concurrency())) {
+            IntStream.range(0, this.settings.concurrency()).forEach(i -> workers.submit(() -> {
+                while (System.nanoTime() < deadline) execute(nextOperation());
+            }));
+        }
+        return Duration.ofNanos(System.nanoTime() - start);
+    }
+
+    private void execute(final Operation operation) {
+        final var start = System.nanoTime();
+        try {
+            final var ok = switch (operation) {
+                case SAVE_DEVICE -> saveDevice();
+                case MODIFY_SERVICES -> modifyServices();
+                case GET_DEVICE -> getDevice();
+            };
+            if (!ok) this.errors.get(operation).incrementAndGet();
+        } catch (final Exception exception) {
+            this.errors.get(operation).incrementAndGet();
+        } finally {
+            this.latencies.get(operation).recordValue(System.nanoTime() - start);
+        }
+    }
+
+    private Operation nextOperation() {
+        final var dice = ThreadLocalRandom.current().nextInt(100);
+        if (dice < this.settings.savePercentage()) return Operation.SAVE_DEVICE;
+        if (dice < this.settings.savePercentage() + this.settings.modifyPercentage()) return Operation.MODIFY_SERVICES;
+        return Operation.GET_DEVICE;
+    }
+
+    private boolean saveDevice() throws IOException, InterruptedException {
+        final var body = Map.of(
+                "systemName", "load-test-" + this.devicesCount.incrementAndGet() + "-" + UUID.randomUUID(),
+                "type", "WINDOWS_SERVER",
+                "customerId", CUSTOMER_ID
+        );
+        final var response = send(HttpRequest.newBuilder(this.baseUri.resolve("/devices"))
+                                             .header("Content-Type", "application/json")
+                                             .POST(HttpRequest.BodyPublishers.ofByteArray(this.objectMapper.writeValueAsBytes(body))));
+        if (response.statusCode() != 200) return false;
+        this.devicesIds.add(this.objectMapper.readTree(response.body()).get("id").asLong());
+        return true;
+    }
+
+    private boolean modifyServices() throws IOException, InterruptedException {
+        final var random = ThreadLocalRandom.current();
+        final var body = Map.of(
+                "servicesIds", List.of(OPTIONAL_SERVICES_IDS[random.nextInt(OPTIONAL_SERVICES_IDS.length)]),
+                "action", random.nextBoolean() ? "ADD" : "REMOVE"
+        );
+        final var uri = this.baseUri.resolve("/devices/" + randomDeviceId() + "/services");
+        final var response = send(HttpRequest.newBuilder(uri)
+                                             .header("Content-Type", "application/json")
+                                             .POST(HttpRequest.BodyPublishers.ofByteArray(this.objectMapper.writeValueAsBytes(body))));
+        return response.statusCode() == 200;
+    }
+
+    private boolean getDevice() throws IOException, InterruptedException {
+        final var response = send(HttpRequest.newBuilder(this.baseUri.resolve("/devices/" + randomDeviceId())).GET());
+        return response.statusCode() == 200;
+    }
+
+    private long randomDeviceId() {
+        return this.devicesIds.get(ThreadLocalRandom.current().nextInt(this.devicesIds.size()));
+    }
+
+    private HttpResponse<byte[]> send(final HttpRequest.Builder request) throws IOException, InterruptedException {
+        return this.client.send(request.timeout(Duration.ofSeconds(30)).build(), HttpResponse.BodyHandlers.ofByteArray());
+    }
+
+    private void reset() {
+        this.latencies.values().forEach(Histogram::reset);
+        this.errors.values().forEach(count -> count.set(0));
+    }
+
+    private void report(final Duration elapsed) throws IOException {
+        final var operations = new LinkedHashMap<String, Object>();
+        System.out.printf("%n%-16s %10s %10s %10s %10s %10s %10s %8s%n",
+                "operation", "count", "ops/s", "p50 ms", "p99 ms", "p999 ms", "max ms", "errors");
+        for (final var operation : Operation.values()) {
+            final var histogram = this.latencies.get(operation);
+            final var result = new LinkedHashMap<String, Object>();
+            result.put("count", histogram.getTotalCount());
+            result.put("errors", this.errors.get(operation).get());
+            result.put("throughputPerSecond", histogram.getTotalCount() / (elapsed.toNanos() / 1e9));
+            result.put("p50Millis", millis(histogram.getValueAtPercentile(50)));
+            result.put("p99Millis", millis(histogram.getValueAtPercentile(99)));
+            result.put("p999Millis", millis(histogram.getValueAtPercentile(99.9)));
+            result.put("maxMillis", millis(histogram.getMaxValue()));
+            operations.put(operation.name(), result);
+            System.out.printf("%-16s %10d %10.1f %10.3f %10.3f %10.3f %10.3f %8d%n",
+                    operation, result.get("count"), result.get("throughputPerSecond"), result.get("p50Millis"),
+                    result.get("p99Millis"), result.get("p999Millis"), result.get("maxMillis"), result.get("errors"));
+        }
+
+        final var report = new LinkedHashMap<String, Object>();
+        report.put("version", this.settings.version());
+        report.put("timestamp", Instant.now().toString());
+        report.put("settings", this.settings);
+        report.put("elapsedSeconds", elapsed.toMillis() / 1e3);
+        report.put("operations", operations);
+
+        final var file = this.settings.resultsDirectory()
+                                      .resolve(this.settings.version() + "-" + System.currentTimeMillis() + ".json");
+        Files.createDirectories(file.getParent());
+        this.objectMapper.enable(SerializationFeature.INDENT_OUTPUT).writeValue(file.toFile(), report);
+        System.out.printf("%nResults stored in %s%n", file.toAbsolutePath());
+    }
+
+    private static double millis(final long nanos) {
+        return nanos / 1e6;
+    }
+
+    private enum Operation { SAVE_DEVICE, MODIFY_SERVICES, GET_DEVICE }
+
+    /**
+     * @param version          version of the application under test, used to name the results file.
+     * @param profiles         Spring profiles the application is started with, e.g. virtual-threads.
+     * @param resultsDirectory where the results are stored.
+     * @param concurrency      number of workers sending requests.
+     * @param initialDevices   number of devices saved before the test.
+     * @param warmUp           duration of the warm-up, whose results are discarded.
+     * @param duration         duration of the measured test.
+     * @param savePercentage   percentage of device saves, the rest are reads.
+     * @param modifyPercentage percentage of device services modifications, the rest are reads.
+     */
+    record Settings(
+            String version,
+            String profiles,
+            Path resultsDirectory,
+            int concurrency,
+            int initialDevices,
+            Duration warmUp,
+            Duration duration,
+            int savePercentage,
+            int modifyPercentage
+    ) {
+        static Settings fromSystemProperties() {
+            return new Settings(
+                    System.getProperty("loadtest.version", "dev"),
+                    System.getProperty("loadtest.profiles", "default"),
+                    Path.of(System.getProperty("loadtest.resultsDirectory", "load-test-results")),
+                    Integer.getInteger("loadtest.concurrency", 32),
+                    Integer.getInteger("loadtest.initialDevices", 1_000),
+                    Duration.ofSeconds(Integer.getInteger("loadtest.warmUpSeconds", 10)),
+                    Duration.ofSeconds(Integer.getInteger("loadtest.durationSeconds", 30)),
+                    Integer.getInteger("loadtest.savePercentage", 10),
+                    Integer.getInteger("loadtest.modifyPercentage", 30)
+            );
+        }
+    }
+}
@@ -0,0 +1,7 @@
+package com.example.rmm.common.exceptions;
+
+public class ConflictException extends RuntimeException {
+    public ConflictException(final String message, final Throwable cause) {
+        super(message, cause);
+    }
+}
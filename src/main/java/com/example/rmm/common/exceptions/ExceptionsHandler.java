@@ -4,6 +4,7 @@ import com.fasterxml.jackson.databind.exc.InvalidFormatException;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.context.support.DefaultMessageSourceResolvable;
 import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.dao.OptimisticLockingFailureException;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.HttpStatusCode;
@@ -39,6 +40,20 @@ public class ExceptionsHandler extends ResponseEntityExceptionHandler {
         return ResponseEntity.status(BAD_REQUEST).body(body);
     }
 
+    @ExceptionHandler(ConflictException.class)
+    public ResponseEntity<?> handleConflictException(final ConflictException exception) {
+        final var body = Map.of("errors", List.of(exception.getMessage()));
+        log.error(exception.getMessage(), exception.getCause());
+        return ResponseEntity.status(CONFLICT).body(body);
+    }
+
+    @ExceptionHandler(OptimisticLockingFailureException.class)
+    public ResponseEntity<?> handleOptimisticLockingFailureException(final OptimisticLockingFailureException exception) {
+        final var body = Map.of("errors", List.of("The resource was modified concurrently, please try again"));
+        log.error(exception.getMessage(), exception.getCause());
+        return ResponseEntity.status(CONFLICT).body(body);
+    }
+
     @ExceptionHandler(DataIntegrityViolationException.class)
     public ResponseEntity<?> handleDataIntegrityViolationException(final DataIntegrityViolationException exception) {
         final var body = Map.of("errors", List.of("Provided data is violating a data integrity constraint"));
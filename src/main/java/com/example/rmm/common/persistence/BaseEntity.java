@@ -3,20 +3,31 @@ package com.example.rmm.common.persistence;
 import jakarta.persistence.GeneratedValue;
 import jakarta.persistence.Id;
 import jakarta.persistence.MappedSuperclass;
+import jakarta.persistence.Version;
 import lombok.Getter;
 import lombok.Setter;
 
-import static jakarta.persistence.GenerationType.IDENTITY;
+import static jakarta.persistence.GenerationType.SEQUENCE;
 
 @Getter
 @Setter
 @MappedSuperclass
 public abstract class BaseEntity {
 
+    /**
+     * Generated from a sequence per entity ({@code device_seq}, {@code service_seq}) incremented by 50,
+     * so that IDs are assigned in memory (pooled-lo optimizer) and the inserts can be batched.
+     */
     @Id
-    @GeneratedValue(strategy = IDENTITY)
+    @GeneratedValue(strategy = SEQUENCE)
     protected Long id;
 
+    /**
+     * Incremented by every update, including the changes to the entity collections.
+     */
+    @Version
+    protected Long version;
+
     @Override
     public int hashCode() {
         return 31;
@@ -0,0 +1,37 @@
+package com.example.rmm.common.persistence;
+
+import jakarta.persistence.EntityManagerFactory;
+import org.hibernate.SessionFactory;
+import org.springframework.stereotype.Component;
+
+import java.util.Collection;
+
+/**
+ * Evicts from the Hibernate second-level cache what was written to the database
+ * without Hibernate, through JDBC or an {@code ON DELETE CASCADE}. Has no effect
+ * when the second-level cache is disabled.
+ * <p>
+ * To be called once the writes are committed, so that the evicted entries
+ * cannot be cached again with the previous state.
+ */
+@Component
+public class SecondLevelCache {
+
+    private final org.hibernate.Cache cache;
+
+    public SecondLevelCache(final EntityManagerFactory entityManagerFactory) {
+        this.cache = entityManagerFactory.unwrap(SessionFactory.class).getCache();
+    }
+
+    public void evictEntities(final Class<?> entityClass, final Collection<Long> ids) {
+        ids.forEach(id -> this.cache.evictEntityData(entityClass, id));
+    }
+
+    /**
+     * @param role      collection role, the entity name followed by the collection attribute.
+     * @param ownersIds IDs of the entities owning the collections.
+     */
+    public void evictCollections(final String role, final Collection<Long> ownersIds) {
+        ownersIds.forEach(id -> this.cache.evictCollectionData(role, id));
+    }
+}
@@ -0,0 +1,21 @@
+package com.example.rmm.common.persistence;
+
+import org.springframework.boot.autoconfigure.transaction.TransactionManagerCustomizer;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.orm.jpa.JpaTransactionManager;
+
+/**
+ * Allows {@code PROPAGATION_NESTED} transactions, run within a JDBC savepoint of the current
+ * transaction, so that a failed statement can be rolled back without rolling back the whole
+ * transaction on any database. They must only run JDBC statements, as the savepoint does not
+ * cover the entities of the persistence context.
+ */
+@Configuration(proxyBeanMethods = false)
+public class TransactionsConfiguration {
+
+    @Bean
+    public TransactionManagerCustomizer<JpaTransactionManager> nestedTransactionsCustomizer() {
+        return transactionManager -> transactionManager.setNestedTransactionAllowed(true);
+    }
+}
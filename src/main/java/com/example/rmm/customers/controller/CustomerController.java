@@ -0,0 +1,22 @@
+package com.example.rmm.customers.controller;
+
+import com.example.rmm.customers.controller.dtos.CustomerCostData;
+import com.example.rmm.customers.service.CustomerCostService;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.web.bind.annotation.*;
+
+@Slf4j
+@RestController
+@RequiredArgsConstructor
+@RequestMapping("/customers")
+public class CustomerController {
+
+    private final CustomerCostService customerCostService;
+
+    @GetMapping("/{customerId}/cost")
+    public CustomerCostData findCost(@PathVariable final Long customerId) {
+        log.info("Find customer cost - request received: {}", customerId);
+        return this.customerCostService.findCost(customerId);
+    }
+}
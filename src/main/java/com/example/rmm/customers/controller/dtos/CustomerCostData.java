@@ -0,0 +1,6 @@
+package com.example.rmm.customers.controller.dtos;
+
+import lombok.Builder;
+
+@Builder
+public record CustomerCostData(Long customerId, Double servicesCost) {}
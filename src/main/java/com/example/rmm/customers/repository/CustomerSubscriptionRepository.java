@@ -0,0 +1,92 @@
+package com.example.rmm.customers.repository;
+
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Repository;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.sql.DataSource;
+import java.util.Map;
+
+/**
+ * Plain JDBC access to the number of devices of each customer subscribed to each service.
+ */
+@Repository
+public class CustomerSubscriptionRepository {
+
+    private static final int BATCH_SIZE = 500;
+    private static final String ADD_DEVICES = "UPDATE customer_subscription SET devices = devices + ?"
+            + " WHERE customer_id = ? AND service_id = ?";
+
+    private final JdbcTemplate jdbcTemplate;
+    private final TransactionTemplate savepoint;
+
+    public CustomerSubscriptionRepository(final DataSource dataSource, final PlatformTransactionManager transactionManager) {
+        this.jdbcTemplate = new JdbcTemplate(dataSource);
+        // Runs within a savepoint of the current transaction, so that a failed statement does not roll it back
+        this.savepoint = new TransactionTemplate(transactionManager);
+        this.savepoint.setPropagationBehavior(TransactionDefinition.PROPAGATION_NESTED);
+    }
+
+    /**
+     * @return the services cost of the customer's devices, the devices of each subscription times the service price.
+     */
+    public double findCost(final Long customerId) {
+        return this.jdbcTemplate.queryForObject(
+                "SELECT COALESCE(SUM(cs.devices * s.price), 0) FROM customer_subscription cs"
+                        + " JOIN service s ON s.id = cs.service_id WHERE cs.customer_id = ?",
+                Double.class,
+                customerId
+        );
+    }
+
+    /**
+     * Adds the given number of devices, negative when removed, to each subscription. It must run in
+     * the transaction writing the devices services, so that both are committed or rolled back together.
+     */
+    @Transactional(propagation = Propagation.MANDATORY)
+    public void addDevices(final Map<Subscription, Long> devices) {
+        // Update the rows in the same order in every transaction, so that concurrent ones can not deadlock.
+        // The devices without a customer are not part of any total, so they are left out.
+        final var updates = devices.entrySet()
+                                   .stream()
+                                   .filter(update -> update.getKey().customerId() != null && update.getValue() != 0)
+                                   .sorted(Map.Entry.comparingByKey())
+                                   .toList();
+        if (updates.isEmpty()) return;
+
+        final var updateCounts = this.jdbcTemplate.batchUpdate(ADD_DEVICES, updates, BATCH_SIZE, (statement, update) -> {
+            statement.setLong(1, update.getValue());
+            statement.setLong(2, update.getKey().customerId());
+            statement.setLong(3, update.getKey().serviceId());
+        });
+        int i = 0;
+        for (final var batchCounts : updateCounts) {
+            for (final var count : batchCounts) {
+                if (count == 0) insert(updates.get(i).getKey(), updates.get(i).getValue());
+                i++;
+            }
+        }
+    }
+
+    /**
+     * Inserts the first devices of the subscription, or adds them when inserted by a concurrent transaction meanwhile.
+     */
+    private void insert(final Subscription subscription, final long devices) {
+        try {
+            this.savepoint.executeWithoutResult(status -> this.jdbcTemplate.update(
+                    "INSERT INTO customer_subscription (customer_id, service_id, devices) VALUES (?, ?, ?)",
+                    subscription.customerId(),
+                    subscription.serviceId(),
+                    devices
+            ));
+        } catch (DuplicateKeyException e) {
+            // The insert waited for the concurrent one to commit, so the row can be updated now
+            this.jdbcTemplate.update(ADD_DEVICES, devices, subscription.customerId(), subscription.serviceId());
+        }
+    }
+}
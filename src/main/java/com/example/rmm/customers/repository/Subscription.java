@@ -0,0 +1,17 @@
+package com.example.rmm.customers.repository;
+
+import java.util.Comparator;
+
+/**
+ * The subscription of a customer's devices to a service.
+ */
+public record Subscription(Long customerId, Long serviceId) implements Comparable<Subscription> {
+
+    private static final Comparator<Subscription> ORDER = Comparator.comparing(Subscription::customerId)
+                                                                   .thenComparing(Subscription::serviceId);
+
+    @Override
+    public int compareTo(final Subscription other) {
+        return ORDER.compare(this, other);
+    }
+}
@@ -0,0 +1,42 @@
+package com.example.rmm.customers.service;
+
+import com.example.rmm.customers.controller.dtos.CustomerCostData;
+import com.example.rmm.customers.repository.CustomerSubscriptionRepository;
+import com.example.rmm.customers.repository.Subscription;
+import com.example.rmm.devices.service.CostStrategy;
+import com.example.rmm.devices.service.DeviceCostEngine;
+import lombok.RequiredArgsConstructor;
+import org.springframework.stereotype.Service;
+
+import java.util.Map;
+
+/**
+ * Computes the services cost of each customer's devices from a rollup of the number of devices
+ * of the customer subscribed to each service.
+ * <p>
+ * The rollup is updated in the transaction writing the devices services, so it's never behind
+ * a committed write, and a total is a sum over the services instead of over the devices. The
+ * prices are not part of it, so it's left as is when a price changes.
+ * With the {@link CostStrategy#SQL} strategy, the totals are summed from the devices services instead.
+ */
+@Service
+@RequiredArgsConstructor
+public class CustomerCostService {
+
+    private final DeviceCostEngine costEngine;
+    private final CustomerSubscriptionRepository subscriptionRepository;
+
+    public CustomerCostData findCost(final Long customerId) {
+        final var cost = this.costEngine.strategy() == CostStrategy.SQL
+                ? this.costEngine.computeCustomerCost(customerId)
+                : this.subscriptionRepository.findCost(customerId);
+        return CustomerCostData.builder().customerId(customerId).servicesCost(cost).build();
+    }
+
+    /**
+     * Adds the devices subscribed to each service, or removes them when negative, within the current transaction.
+     */
+    public void addDevices(final Map<Subscription, Long> devices) {
+        this.subscriptionRepository.addDevices(devices);
+    }
+}
@@ -2,20 +2,36 @@ package com.example.rmm.devices.controller;
 
 import com.example.rmm.devices.controller.dtos.*;
 import com.example.rmm.devices.service.DeviceService;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import jakarta.validation.Valid;
+import jakarta.validation.constraints.Max;
+import jakarta.validation.constraints.Positive;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.http.CacheControl;
+import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.WebRequest;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+import org.springframework.web.servlet.support.ServletUriComponentsBuilder;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.util.List;
 
+import static org.springframework.http.HttpHeaders.LINK;
+import static org.springframework.http.MediaType.APPLICATION_NDJSON_VALUE;
+
 @Slf4j
 @RestController
 @RequiredArgsConstructor
 @RequestMapping("/devices")
 public class DeviceController {
 
+    private static final int MAX_PAGE_SIZE = 1_000;
+
     private final DeviceService deviceService;
+    private final ObjectMapper objectMapper;
 
     @PostMapping
     public SaveDeviceResponse save(@Valid @RequestBody final SaveDeviceRequest request) {
@@ -23,6 +39,12 @@ public class DeviceController {
         return this.deviceService.save(request);
     }
 
+    @PostMapping("/batch")
+    public SaveDevicesBatchResponse saveAll(@Valid @RequestBody final SaveDevicesBatchRequest request) {
+        log.info("Save devices batch - request received: {} device(s)", request.devices().size());
+        return this.deviceService.saveAll(request);
+    }
+
     @DeleteMapping("/{id}")
     public void delete(@PathVariable final Long id) {
         log.info("Delete device - request received: {}", id);
@@ -38,15 +60,63 @@ public class DeviceController {
         this.deviceService.modifyDeviceServices(id, request);
     }
 
+    /**
+     * Adds or removes services to all the devices matching the given customer, type and/or IDs.
+     */
+    @PostMapping("/services")
+    public ModifyDevicesServicesResponse modifyDevicesServices(@Valid @RequestBody final ModifyDevicesServicesRequest request) {
+        log.info("Modify devices services - request received: {}", request);
+        return this.deviceService.modifyDevicesServices(request);
+    }
+
+    /**
+     * Returns the device full data, or 304 Not Modified when the client already has its current version.
+     */
     @GetMapping("/{id}")
-    public FullDeviceData findById(@PathVariable final Long id) {
+    public ResponseEntity<FullDeviceData> findById(@PathVariable final Long id, final WebRequest request) {
         log.info("Find device with full data - request received: {}", id);
-        return this.deviceService.findById(id);
+        if (request.checkNotModified(this.deviceService.findETag(id))) return null;
+        return ResponseEntity.ok().cacheControl(CacheControl.noCache()).body(this.deviceService.findById(id));
     }
 
+    /**
+     * Returns a page of devices sorted by ID. When there could be more devices,
+     * the URL of the next page is returned in the {@code Link} header.
+     */
     @GetMapping
-    public List<BasicDeviceData> findAll() {
-        log.info("Find all devices with full data - request received");
-        return this.deviceService.findAll();
+    public ResponseEntity<List<BasicDeviceData>> findAll(
+            @RequestParam(required = false) final Long afterId,
+            @RequestParam(required = false) final Long customerId,
+            @RequestParam(required = false) final Type type,
+            @RequestParam(defaultValue = "100") @Positive @Max(MAX_PAGE_SIZE) final int limit
+    ) {
+        log.info("Find all devices - request received: afterId={}, customerId={}, type={}", afterId, customerId, type);
+        final var devices = this.deviceService.findAll(afterId, customerId, type, limit);
+        if (devices.size() < limit) return ResponseEntity.ok(devices);
+
+        final var nextPage = ServletUriComponentsBuilder.fromCurrentRequest()
+                                                        .replaceQueryParam("afterId", devices.get(devices.size() - 1).id())
+                                                        .toUriString();
+        return ResponseEntity.ok().header(LINK, "<" + nextPage + ">; rel=\"next\"").body(devices);
+    }
+
+    /**
+     * Streams all the devices as newline delimited JSON, without holding them in memory.
+     */
+    @GetMapping(value = "/stream", produces = APPLICATION_NDJSON_VALUE)
+    public StreamingResponseBody streamAll(
+            @RequestParam(required = false) final Long customerId,
+            @RequestParam(required = false) final Type type
+    ) {
+        log.info("Stream all devices - request received: customerId={}, type={}", customerId, type);
+        final var writer = this.objectMapper.writerFor(BasicDeviceData.class);
+        return output -> this.deviceService.streamAll(customerId, type, device -> {
+            try {
+                output.write(writer.writeValueAsBytes(device));
+                output.write('\n');
+            } catch (final IOException exception) {
+                throw new UncheckedIOException(exception);
+            }
+        });
     }
 }
@@ -0,0 +1,34 @@
+package com.example.rmm.devices.controller.dtos;
+
+import com.example.rmm.devices.controller.dtos.ModifyDeviceServicesRequest.Action;
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import jakarta.validation.constraints.*;
+
+import java.util.Set;
+
+/**
+ * Adds or removes services to all the devices matching the given customer, type and/or IDs.
+ */
+public record ModifyDevicesServicesRequest(
+        @Positive(message = "The Customer ID is invalid")
+        Long customerId,
+
+        Type type,
+
+        @Size(max = 10_000, message = "At most 10000 device IDs can be provided")
+        Set<@NotNull(message = "Null IDs are not allowed") @Positive(message = "Invalid ID(s)") Long> devicesIds,
+
+        @NotNull(message = "The service(s) ID(s) must be provided")
+        @NotEmpty(message = "At least one service ID must be provided")
+        Set<@NotNull(message = "Null IDs are not allowed") @Positive(message = "Invalid ID(s)") Long> servicesIds,
+
+        @NotNull(message = "The Action is required")
+        Action action
+) {
+
+    @JsonIgnore
+    @AssertTrue(message = "A Customer ID, a Type or the devices IDs must be provided")
+    public boolean isFiltered() {
+        return this.customerId != null || this.type != null || (this.devicesIds != null && !this.devicesIds.isEmpty());
+    }
+}
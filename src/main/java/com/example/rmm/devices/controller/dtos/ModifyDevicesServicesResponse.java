@@ -0,0 +1,10 @@
+package com.example.rmm.devices.controller.dtos;
+
+import lombok.Builder;
+
+/**
+ * @param devices number of devices matching the request.
+ * @param links   number of links between devices and services added or removed.
+ */
+@Builder
+public record ModifyDevicesServicesResponse(int devices, int links) {}
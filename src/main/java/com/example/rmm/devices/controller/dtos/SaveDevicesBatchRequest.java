@@ -0,0 +1,16 @@
+package com.example.rmm.devices.controller.dtos;
+
+import jakarta.validation.constraints.NotEmpty;
+import jakarta.validation.constraints.Size;
+
+import java.util.List;
+
+/**
+ * The devices are validated one by one when saved, so that a single invalid
+ * device does not prevent the others from being saved.
+ */
+public record SaveDevicesBatchRequest(
+        @NotEmpty(message = "At least one device must be provided")
+        @Size(max = 10_000, message = "At most 10000 devices can be saved at once")
+        List<SaveDeviceRequest> devices
+) {}
@@ -0,0 +1,15 @@
+package com.example.rmm.devices.controller.dtos;
+
+import lombok.Builder;
+
+import java.util.List;
+
+@Builder
+public record SaveDevicesBatchResponse(int saved, int failed, List<Result> results) {
+
+    /**
+     * Outcome of saving the device at the given index of the request,
+     * either its ID or the reasons why it was not saved.
+     */
+    public record Result(int index, Long id, List<String> errors) {}
+}
@@ -2,6 +2,7 @@ package com.example.rmm.devices.repository;
 
 import com.example.rmm.common.persistence.BaseEntity;
 import com.example.rmm.services.repository.Service;
+import jakarta.persistence.Cacheable;
 import jakarta.persistence.Entity;
 import jakarta.persistence.JoinColumn;
 import jakarta.persistence.JoinTable;
@@ -9,25 +10,34 @@ import jakarta.persistence.ManyToMany;
 import lombok.Getter;
 import lombok.NoArgsConstructor;
 import lombok.Setter;
+import org.hibernate.annotations.BatchSize;
+import org.hibernate.annotations.Cache;
 
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
 
-import static jakarta.persistence.CascadeType.MERGE;
-import static jakarta.persistence.CascadeType.PERSIST;
+import static org.hibernate.annotations.CacheConcurrencyStrategy.READ_WRITE;
 
 @Entity
+@Cacheable
+@Cache(usage = READ_WRITE)
 @Setter
 @Getter
 @NoArgsConstructor
 public class Device extends BaseEntity {
 
+    public static final String SERVICES_ROLE = "com.example.rmm.devices.repository.Device.services";
+
     private String systemName;
     private String type;
     private Long customerId;
 
-    @ManyToMany(cascade = {PERSIST, MERGE})
+    // Services are never persisted or merged through a device, so the detached ones
+    // from the services catalog can be linked without loading them
+    @BatchSize(size = 50)
+    @Cache(usage = READ_WRITE)
+    @ManyToMany
     @JoinTable(
             name = "device_service",
             joinColumns = @JoinColumn(name = "device_id"),
@@ -49,6 +59,10 @@ public class Device extends BaseEntity {
         currentServices.forEach(this.services::remove);
     }
 
+    public double getServicesCost() {
+        return this.services.stream().mapToDouble(Service::getPrice).sum();
+    }
+
     @Override
     public boolean equals(final Object o) {
         if (this == o) return true;
@@ -0,0 +1,11 @@
+package com.example.rmm.devices.repository;
+
+/**
+ * Services cost of a device, summed by the database.
+ */
+public interface DeviceCost {
+
+    Long getId();
+
+    Double getCost();
+}
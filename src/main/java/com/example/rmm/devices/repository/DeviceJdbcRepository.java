@@ -0,0 +1,434 @@
+package com.example.rmm.devices.repository;
+
+import com.example.rmm.devices.controller.dtos.BasicDeviceData;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.ParameterizedPreparedStatementSetter;
+import org.springframework.jdbc.core.RowCallbackHandler;
+import org.springframework.jdbc.core.namedparam.MapSqlParameterSource;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.stereotype.Repository;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.sql.DataSource;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.*;
+import java.util.function.Consumer;
+
+/**
+ * Plain JDBC access to the device tables, for the paths where loading
+ * JPA entities would be too expensive.
+ */
+@Repository
+public class DeviceJdbcRepository {
+
+    private static final int FETCH_SIZE = 1_000;
+    private static final int BATCH_SIZE = 500;
+    // Must match the increment of device_seq
+    private static final int ID_BLOCK_SIZE = 50;
+    private static final String INSERT_DEVICE_IF_ABSENT = "INSERT INTO device (id, customer_id, system_name, type)"
+            + " SELECT CAST(? AS BIGINT), CAST(? AS BIGINT), CAST(? AS VARCHAR), CAST(? AS VARCHAR)"
+            + " WHERE NOT EXISTS (SELECT 1 FROM device WHERE system_name = ? AND type = ? AND customer_id = ?)";
+    private static final String INSERT_LINK_IF_ABSENT = "INSERT INTO device_service (device_id, service_id)"
+            + " SELECT CAST(? AS BIGINT), CAST(? AS BIGINT)"
+            + " WHERE NOT EXISTS (SELECT 1 FROM device_service WHERE device_id = ? AND service_id = ?)";
+
+    private final JdbcTemplate jdbcTemplate;
+    private final NamedParameterJdbcTemplate namedParameterJdbcTemplate;
+    private final TransactionTemplate savepoint;
+
+    public DeviceJdbcRepository(final DataSource dataSource, final PlatformTransactionManager transactionManager) {
+        this.jdbcTemplate = new JdbcTemplate(dataSource);
+        this.jdbcTemplate.setFetchSize(FETCH_SIZE);
+        this.namedParameterJdbcTemplate = new NamedParameterJdbcTemplate(this.jdbcTemplate);
+        // Runs within a savepoint of the current transaction, so that a failed statement does not roll it back
+        this.savepoint = new TransactionTemplate(transactionManager);
+        this.savepoint.setPropagationBehavior(TransactionDefinition.PROPAGATION_NESTED);
+    }
+
+    /**
+     * Reads the devices with a database cursor and hands them over one at a
+     * time, so that they are never held in memory all together.
+     */
+    public void streamAll(final Long customerId, final String type, final Consumer<BasicDeviceData> consumer) {
+        final var sql = new StringBuilder("SELECT id, system_name, type FROM device WHERE 1 = 1");
+        final var args = new ArrayList<>();
+        if (customerId != null) {
+            sql.append(" AND customer_id = ?");
+            args.add(customerId);
+        }
+        if (type != null) {
+            sql.append(" AND type = ?");
+            args.add(type);
+        }
+        sql.append(" ORDER BY id");
+
+        this.jdbcTemplate.query(
+                sql.toString(),
+                (RowCallbackHandler) resultSet -> consumer.accept(new BasicDeviceData(
+                        resultSet.getLong("id"),
+                        resultSet.getString("system_name"),
+                        resultSet.getString("type")
+                )),
+                args.toArray()
+        );
+    }
+
+    /**
+     * Reads all the links between devices and services, along with the devices
+     * versions, with a database cursor ordered by device.
+     */
+    public void streamServicesLinks(final ServicesLinkConsumer consumer) {
+        this.jdbcTemplate.query(
+                "SELECT ds.device_id, d.version, ds.service_id FROM device_service ds"
+                        + " JOIN device d ON d.id = ds.device_id ORDER BY ds.device_id",
+                (RowCallbackHandler) resultSet -> consumer.accept(
+                        resultSet.getLong("device_id"),
+                        resultSet.getLong("version"),
+                        resultSet.getLong("service_id")
+                )
+        );
+    }
+
+    /**
+     * @return an ID no device ID is above, 0 when no ID was assigned yet. The IDs are assigned
+     * from {@code device_seq}, so it's read from the sequence instead of scanning the devices.
+     */
+    public long findIdsUpperBound() {
+        return this.jdbcTemplate.queryForObject(
+                "SELECT base_value - 1 FROM information_schema.sequences WHERE sequence_name = 'DEVICE_SEQ'",
+                Long.class
+        );
+    }
+
+    /**
+     * Computes the services cost of the devices with an ID in the given range, both
+     * inclusive, with a single aggregate and without loading any entity.
+     *
+     * @return the cost of each device subscribed to at least one service, by device ID.
+     */
+    public Map<Long, Double> findServicesCosts(final long fromId, final long toId) {
+        final var costs = new HashMap<Long, Double>();
+        this.jdbcTemplate.query(
+                "SELECT ds.device_id, SUM(s.price) AS cost FROM device_service ds"
+                        + " JOIN service s ON s.id = ds.service_id"
+                        + " WHERE ds.device_id BETWEEN ? AND ? GROUP BY ds.device_id",
+                (RowCallbackHandler) resultSet -> costs.put(resultSet.getLong("device_id"), resultSet.getDouble("cost")),
+                fromId,
+                toId
+        );
+        return costs;
+    }
+
+    /**
+     * @return the change marker of the devices costs, the next value of {@code device_change_seq},
+     * read from the sequence without touching any table.
+     */
+    public long findChangeMarker() {
+        return this.jdbcTemplate.queryForObject(
+                "SELECT base_value FROM information_schema.sequences WHERE sequence_name = 'DEVICE_CHANGE_SEQ'",
+                Long.class
+        );
+    }
+
+    /**
+     * Moves the change marker of the devices costs on. Sequences are not transactional, so
+     * this never waits for, nor blocks, another write.
+     */
+    public void incrementChangeMarker() {
+        this.jdbcTemplate.queryForObject("SELECT NEXT VALUE FOR device_change_seq", Long.class);
+    }
+
+    /**
+     * Inserts the devices and their services links with JDBC batches.
+     * <p>
+     * Devices that already exist, or that are repeated in the given list, are
+     * skipped and left without an ID. The inserted devices get their ID assigned.
+     */
+    @Transactional
+    public void insertAll(final List<Device> devices) {
+        // Skip the devices repeated in the list, the existing ones are skipped by the insert itself
+        final var uniqueKeys = new HashSet<UniqueKey>();
+        final var newDevices = new ArrayList<Device>(devices.size());
+        for (final var device : devices) {
+            if (uniqueKeys.add(UniqueKey.of(device))) newDevices.add(device);
+        }
+        if (newDevices.isEmpty()) return;
+
+        // Assign the IDs from the sequence and insert the devices
+        final var ids = reserveIds(newDevices.size());
+        for (int i = 0; i < newDevices.size(); i++) newDevices.get(i).setId(ids[i]);
+        try {
+            final var updateCounts = this.savepoint.execute(
+                    status -> this.jdbcTemplate.batchUpdate(INSERT_DEVICE_IF_ABSENT, newDevices, BATCH_SIZE, DeviceJdbcRepository::setInsertValues)
+            );
+            int i = 0;
+            for (final var batchCounts : updateCounts) {
+                for (final var count : batchCounts) {
+                    if (count == 0) newDevices.get(i).setId(null);
+                    i++;
+                }
+            }
+        } catch (DuplicateKeyException e) {
+            // A device was inserted by a concurrent transaction after being looked up. The batch is rolled
+            // back to its savepoint, so the devices are inserted again one at a time, each in its own savepoint.
+            newDevices.forEach(this::insertIfAbsent);
+        }
+
+        // Insert the links between the inserted devices and their services
+        final var links = newDevices.stream()
+                                    .filter(device -> device.getId() != null)
+                                    .flatMap(device -> device.getServices()
+                                                             .stream()
+                                                             .map(service -> new long[]{device.getId(), service.getId()}))
+                                    .toList();
+        this.jdbcTemplate.batchUpdate(
+                "INSERT INTO device_service (device_id, service_id) VALUES (?, ?)",
+                links,
+                BATCH_SIZE,
+                (statement, link) -> {
+                    statement.setLong(1, link[0]);
+                    statement.setLong(2, link[1]);
+                }
+        );
+    }
+
+    /**
+     * @return the IDs, in order, of up to {@code limit} devices matching the filter with an ID above the given one.
+     */
+    public List<Long> findIds(final DevicesFilter filter, final long afterId, final int limit) {
+        final var params = new MapSqlParameterSource("afterId", afterId);
+        return this.namedParameterJdbcTemplate.queryForList(
+                "SELECT d.id FROM device d WHERE " + where(filter, params)
+                        + " AND d.id > :afterId ORDER BY d.id FETCH FIRST " + limit + " ROWS ONLY",
+                params,
+                Long.class
+        );
+    }
+
+    /**
+     * Subscribes the given devices to the given services, skipping the links that already
+     * exist. Only the versions of the devices getting a new link are incremented.
+     *
+     * @return the links added.
+     */
+    @Transactional
+    public List<ServicesLink> addServices(final Collection<Long> devicesIds, final Collection<Long> servicesIds) {
+        final var links = new ArrayList<ServicesLink>();
+        this.namedParameterJdbcTemplate.query(
+                "SELECT d.id, d.customer_id, s.id AS service_id FROM device d JOIN service s ON s.id IN (:servicesIds)"
+                        + " WHERE d.id IN (:ids)"
+                        + " AND NOT EXISTS (SELECT 1 FROM device_service ds WHERE ds.device_id = d.id AND ds.service_id = s.id)",
+                new MapSqlParameterSource("servicesIds", servicesIds).addValue("ids", devicesIds),
+                (RowCallbackHandler) resultSet -> links.add(servicesLink(resultSet))
+        );
+        if (links.isEmpty()) return links;
+
+        // Increment the versions first, the devices rows are locked before their links, as done by JPA
+        incrementVersions(links);
+        return updateLinks(links, INSERT_LINK_IF_ABSENT, (statement, link) -> {
+            statement.setLong(1, link.deviceId());
+            statement.setLong(2, link.serviceId());
+            statement.setLong(3, link.deviceId());
+            statement.setLong(4, link.serviceId());
+        });
+    }
+
+    /**
+     * Unsubscribes the given devices from the given services, by device type as each type
+     * can remove its own services. Only the versions of the devices losing a link are incremented.
+     *
+     * @return the links removed.
+     */
+    @Transactional
+    public List<ServicesLink> removeServices(
+            final Collection<Long> devicesIds,
+            final Map<String, ? extends Collection<Long>> servicesIdsByType
+    ) {
+        final var servicesIds = servicesIdsByType.values().stream().flatMap(Collection::stream).distinct().toList();
+        if (servicesIds.isEmpty()) return List.of();
+
+        final var links = new ArrayList<ServicesLink>();
+        this.namedParameterJdbcTemplate.query(
+                "SELECT d.id, d.customer_id, d.type, ds.service_id FROM device d"
+                        + " JOIN device_service ds ON ds.device_id = d.id"
+                        + " WHERE d.id IN (:ids) AND ds.service_id IN (:servicesIds)",
+                new MapSqlParameterSource("ids", devicesIds).addValue("servicesIds", servicesIds),
+                (RowCallbackHandler) resultSet -> {
+                    final var removable = servicesIdsByType.get(resultSet.getString("type"));
+                    if (removable != null && removable.contains(resultSet.getLong("service_id"))) links.add(servicesLink(resultSet));
+                }
+        );
+        if (links.isEmpty()) return links;
+
+        incrementVersions(links);
+        return updateLinks(links, "DELETE FROM device_service WHERE device_id = ? AND service_id = ?", (statement, link) -> {
+            statement.setLong(1, link.deviceId());
+            statement.setLong(2, link.serviceId());
+        });
+    }
+
+    /**
+     * Finds the given devices along with their services IDs.
+     */
+    public List<DeviceServicesIds> findServicesIds(final Collection<Long> ids) {
+        final var devices = new ArrayList<DeviceServicesIds>();
+        this.namedParameterJdbcTemplate.query(
+                "SELECT d.id, d.customer_id, d.version, ds.service_id FROM device d"
+                        + " LEFT JOIN device_service ds ON ds.device_id = d.id"
+                        + " WHERE d.id IN (:ids)"
+                        + " ORDER BY d.id",
+                Map.of("ids", ids),
+                (RowCallbackHandler) resultSet -> {
+                    // The rows are ordered by device, so a new device starts when the ID changes
+                    final var id = resultSet.getLong("id");
+                    if (devices.isEmpty() || !devices.get(devices.size() - 1).id().equals(id)) {
+                        devices.add(new DeviceServicesIds(
+                                id,
+                                resultSet.getObject("customer_id", Long.class),
+                                resultSet.getLong("version"),
+                                new ArrayList<>()
+                        ));
+                    }
+                    final var serviceId = resultSet.getObject("service_id", Long.class);
+                    if (serviceId != null) devices.get(devices.size() - 1).servicesIds().add(serviceId);
+                }
+        );
+        return devices;
+    }
+
+    /**
+     * Deletes the device, its services links are deleted by the database.
+     *
+     * @return the deleted device along with the services it was subscribed to, empty when not found.
+     */
+    @Transactional
+    public Optional<DeviceServicesIds> delete(final Long id) {
+        // Lock the device row before reading its services, so they can not change until it's deleted
+        if (this.jdbcTemplate.update("UPDATE device SET version = version + 1 WHERE id = ?", id) == 0) return Optional.empty();
+        final var device = findServicesIds(List.of(id)).get(0);
+        this.jdbcTemplate.update("DELETE FROM device WHERE id = ?", id);
+        return Optional.of(device);
+    }
+
+    /**
+     * Reserves the given number of IDs from {@code device_seq}. As Hibernate does
+     * (pooled-lo optimizer), each sequence value is the lowest of a block of IDs.
+     */
+    private long[] reserveIds(final int count) {
+        final var ids = new long[count];
+        for (int i = 0; i < count; i += ID_BLOCK_SIZE) {
+            final long low = this.jdbcTemplate.queryForObject("SELECT NEXT VALUE FOR device_seq", Long.class);
+            for (int j = 0; j < ID_BLOCK_SIZE && i + j < count; j++) ids[i + j] = low + j;
+        }
+        return ids;
+    }
+
+    /**
+     * Inserts the device unless it violates the unique constraint, leaving it without an ID then.
+     */
+    private void insertIfAbsent(final Device device) {
+        try {
+            final int count = this.savepoint.execute(
+                    status -> this.jdbcTemplate.update(INSERT_DEVICE_IF_ABSENT, statement -> setInsertValues(statement, device))
+            );
+            if (count == 0) device.setId(null);
+        } catch (DuplicateKeyException e) {
+            device.setId(null);
+        }
+    }
+
+    /**
+     * Increments the version of the devices of the given links, as their services are about to change.
+     */
+    private void incrementVersions(final List<ServicesLink> links) {
+        this.namedParameterJdbcTemplate.update(
+                "UPDATE device SET version = version + 1 WHERE id IN (:ids)",
+                Map.of("ids", links.stream().map(ServicesLink::deviceId).distinct().toList())
+        );
+    }
+
+    /**
+     * Inserts or deletes the given links with JDBC batches of the given statement.
+     *
+     * @return the links inserted or deleted, the other ones were inserted or deleted concurrently.
+     */
+    private List<ServicesLink> updateLinks(
+            final List<ServicesLink> links,
+            final String sql,
+            final ParameterizedPreparedStatementSetter<ServicesLink> values
+    ) {
+        final var updated = new ArrayList<ServicesLink>(links.size());
+        try {
+            final var updateCounts = this.savepoint.execute(status -> this.jdbcTemplate.batchUpdate(sql, links, BATCH_SIZE, values));
+            int i = 0;
+            for (final var batchCounts : updateCounts) {
+                for (final var count : batchCounts) {
+                    if (count > 0) updated.add(links.get(i));
+                    i++;
+                }
+            }
+        } catch (DuplicateKeyException e) {
+            // A link was inserted by a concurrent transaction, the links are inserted again one at a time
+            for (final var link : links) {
+                try {
+                    final int count = this.savepoint.execute(status -> this.jdbcTemplate.update(sql, statement -> values.setValues(statement, link)));
+                    if (count > 0) updated.add(link);
+                } catch (DuplicateKeyException duplicateKeyException) {
+                    // Inserted concurrently, so not by this transaction
+                }
+            }
+        }
+        return updated;
+    }
+
+    /**
+     * @return the conditions of the filter on the devices aliased as {@code d}, adding their values to the params.
+     */
+    private static String where(final DevicesFilter filter, final MapSqlParameterSource params) {
+        final var conditions = new StringJoiner(" AND ", "(", ")").setEmptyValue("1 = 1");
+        if (filter.customerId() != null) {
+            conditions.add("d.customer_id = :customerId");
+            params.addValue("customerId", filter.customerId());
+        }
+        if (filter.type() != null) {
+            conditions.add("d.type = :type");
+            params.addValue("type", filter.type());
+        }
+        if (filter.ids() != null && !filter.ids().isEmpty()) {
+            conditions.add("d.id IN (:ids)");
+            params.addValue("ids", filter.ids());
+        }
+        return conditions.toString();
+    }
+
+    private static ServicesLink servicesLink(final ResultSet resultSet) throws SQLException {
+        return new ServicesLink(resultSet.getLong("id"), resultSet.getObject("customer_id", Long.class), resultSet.getLong("service_id"));
+    }
+
+    private static void setInsertValues(final PreparedStatement statement, final Device device) throws SQLException {
+        statement.setLong(1, device.getId());
+        statement.setLong(2, device.getCustomerId());
+        statement.setString(3, device.getSystemName());
+        statement.setString(4, device.getType());
+        statement.setString(5, device.getSystemName());
+        statement.setString(6, device.getType());
+        statement.setLong(7, device.getCustomerId());
+    }
+
+    @FunctionalInterface
+    public interface ServicesLinkConsumer {
+        void accept(long deviceId, long deviceVersion, long serviceId);
+    }
+
+    private record UniqueKey(String systemName, String type, Long customerId) {
+        static UniqueKey of(final Device device) {
+            return new UniqueKey(device.getSystemName(), device.getType(), device.getCustomerId());
+        }
+    }
+}
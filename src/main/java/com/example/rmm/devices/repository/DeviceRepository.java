@@ -1,13 +1,47 @@
 package com.example.rmm.devices.repository;
 
 import com.example.rmm.common.exceptions.NotFoundException;
+import org.springframework.data.jpa.repository.EntityGraph;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
 
+import java.util.Collection;
+import java.util.List;
+import java.util.Optional;
+
 @Repository
-public interface DeviceRepository extends JpaRepository<Device, Long> {
+public interface DeviceRepository extends JpaRepository<Device, Long>, DeviceRepositoryCustom {
+
+    String DEVICE_NOT_FOUND = "Device not found";
+
+    /**
+     * Finds the device along with its services in a single query.
+     */
+    @EntityGraph(attributePaths = "services")
+    Optional<Device> findWithServicesById(Long id);
+
+    @Query("SELECT COALESCE(SUM(s.price), 0.0) FROM Device d JOIN d.services s WHERE d.customerId = :customerId")
+    Double sumServicesPriceByCustomerId(@Param("customerId") Long customerId);
+
+    @Query("SELECT COALESCE(SUM(s.price), 0.0) FROM Device d JOIN d.services s WHERE d.id = :id")
+    Double sumServicesPriceById(@Param("id") Long id);
+
+    /**
+     * Sums the services price of each device, leaving out the devices without services.
+     */
+    @Query("SELECT d.id AS id, SUM(s.price) AS cost FROM Device d JOIN d.services s WHERE d.id IN :ids GROUP BY d.id")
+    List<DeviceCost> sumServicesPriceByIds(@Param("ids") Collection<Long> ids);
 
     default Device findWithId(final Long id){
-        return findById(id).orElseThrow(() -> new NotFoundException("Device not found"));
+        return findWithServicesById(id).orElseThrow(() -> new NotFoundException(DEVICE_NOT_FOUND));
+    }
+
+    /**
+     * Finds the device without loading its services.
+     */
+    default Device findWithIdWithoutServices(final Long id) {
+        return findById(id).orElseThrow(() -> new NotFoundException(DEVICE_NOT_FOUND));
     }
 }
@@ -0,0 +1,19 @@
+package com.example.rmm.devices.repository;
+
+import com.example.rmm.devices.controller.dtos.BasicDeviceData;
+
+import java.util.List;
+
+public interface DeviceRepositoryCustom {
+
+    /**
+     * Finds a page of devices using keyset pagination on the ID.
+     *
+     * @param afterId    ID of the last device of the previous page, null for the first page.
+     * @param customerId optional customer ID filter.
+     * @param type       optional device type filter.
+     * @param limit      maximum number of devices to return.
+     * @return the devices sorted by ID, read straight into DTOs without loading any entity.
+     */
+    List<BasicDeviceData> findPage(Long afterId, Long customerId, String type, int limit);
+}
@@ -0,0 +1,35 @@
+package com.example.rmm.devices.repository;
+
+import com.example.rmm.devices.controller.dtos.BasicDeviceData;
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.PersistenceContext;
+import jakarta.persistence.criteria.Predicate;
+
+import java.util.ArrayList;
+import java.util.List;
+
+class DeviceRepositoryCustomImpl implements DeviceRepositoryCustom {
+
+    @PersistenceContext
+    private EntityManager entityManager;
+
+    @Override
+    public List<BasicDeviceData> findPage(final Long afterId, final Long customerId, final String type, final int limit) {
+        final var builder = this.entityManager.getCriteriaBuilder();
+        final var query = builder.createQuery(BasicDeviceData.class);
+        final var device = query.from(Device.class);
+
+        // Only the provided filters are added, so that the database can use the best index for them
+        final var predicates = new ArrayList<Predicate>();
+        if (afterId != null) predicates.add(builder.greaterThan(device.<Long>get("id"), afterId));
+        if (customerId != null) predicates.add(builder.equal(device.get("customerId"), customerId));
+        if (type != null) predicates.add(builder.equal(device.get("type"), type));
+
+        // Constructor projection, so the devices are neither managed nor kept in the persistence context
+        query.select(builder.construct(BasicDeviceData.class, device.get("id"), device.get("systemName"), device.get("type")))
+             .where(predicates.toArray(Predicate[]::new))
+             .orderBy(builder.asc(device.get("id")));
+
+        return this.entityManager.createQuery(query).setMaxResults(limit).getResultList();
+    }
+}
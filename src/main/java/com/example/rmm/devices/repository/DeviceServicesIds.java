@@ -0,0 +1,8 @@
+package com.example.rmm.devices.repository;
+
+import java.util.List;
+
+/**
+ * A device, at the given version, along with the IDs of the services it's subscribed to.
+ */
+public record DeviceServicesIds(Long id, Long customerId, Long version, List<Long> servicesIds) {}
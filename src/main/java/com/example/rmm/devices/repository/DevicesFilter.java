@@ -0,0 +1,8 @@
+package com.example.rmm.devices.repository;
+
+import java.util.Collection;
+
+/**
+ * Criteria to select devices in bulk, the ones not provided match all the devices.
+ */
+public record DevicesFilter(Long customerId, String type, Collection<Long> ids) {}
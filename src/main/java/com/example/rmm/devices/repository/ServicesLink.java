@@ -0,0 +1,6 @@
+package com.example.rmm.devices.repository;
+
+/**
+ * A link between a device, of the given customer, and a service it's subscribed to.
+ */
+public record ServicesLink(Long deviceId, Long customerId, Long serviceId) {}
@@ -0,0 +1,23 @@
+package com.example.rmm.devices.service;
+
+/**
+ * Where the services cost of the devices and customers is read from, set with {@code rmm.cost.strategy}.
+ */
+public enum CostStrategy {
+
+    /**
+     * From the {@link LocalCache} and the customers running totals, computed from the
+     * subscriptions index on a miss.
+     */
+    CACHE,
+
+    /**
+     * From the subscriptions index on every read, without caching the devices costs.
+     */
+    INDEX,
+
+    /**
+     * From the database on every read, with an aggregate over the services links.
+     */
+    SQL
+}
@@ -0,0 +1,111 @@
+package com.example.rmm.devices.service;
+
+import com.example.rmm.devices.repository.DeviceCost;
+import com.example.rmm.devices.repository.DeviceRepository;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.OptionalDouble;
+import java.util.function.DoubleSupplier;
+
+import static java.util.stream.Collectors.toMap;
+
+/**
+ * Computes the services cost of single devices, batches of devices and customers as set by
+ * {@code rmm.cost.strategy}, see {@link CostStrategy}.
+ * <p>
+ * Whatever the strategy is, the costs computed for the cache, on reads and writes alike, are never
+ * summed from the device services entities: they come from the subscriptions index, or from a
+ * {@code SUM(price)} projection query. Only a read already loading the services of a device not
+ * indexed passes their sum, see {@link #findCost(Long, DoubleSupplier)}.
+ */
+@Slf4j
+@Component
+public class DeviceCostEngine {
+
+    private final LocalCache cache;
+    private final DeviceSubscriptionIndex subscriptionIndex;
+    private final DeviceRepository deviceRepository;
+    private final CostStrategy strategy;
+
+    public DeviceCostEngine(
+            final LocalCache cache,
+            final DeviceSubscriptionIndex subscriptionIndex,
+            final DeviceRepository deviceRepository,
+            @Value("${rmm.cost.strategy:CACHE}") final CostStrategy strategy
+    ) {
+        this.cache = cache;
+        this.subscriptionIndex = subscriptionIndex;
+        this.deviceRepository = deviceRepository;
+        this.strategy = strategy;
+        log.info("Costs read with the {} strategy", strategy);
+    }
+
+    public CostStrategy strategy() {
+        return this.strategy;
+    }
+
+    /**
+     * @return the cost of the device, summed by the database when the device is not indexed.
+     */
+    public double findCost(final Long id) {
+        return findCost(id, () -> this.deviceRepository.sumServicesPriceById(id));
+    }
+
+    /**
+     * @param notIndexedCost cost of the device when it is not indexed, e.g. from its services
+     *                       already loaded. Ignored by the {@link CostStrategy#SQL} strategy.
+     * @return the cost of the device.
+     */
+    public double findCost(final Long id, final DoubleSupplier notIndexedCost) {
+        return switch (this.strategy) {
+            case CACHE -> this.cache.get(id, () -> this.subscriptionIndex.findCost(id).orElseGet(notIndexedCost));
+            case INDEX -> this.subscriptionIndex.findCost(id).orElseGet(notIndexedCost);
+            case SQL -> this.deviceRepository.sumServicesPriceById(id);
+        };
+    }
+
+    /**
+     * Computes the cost of the device, bypassing the cache: from the index, unless the strategy
+     * is {@link CostStrategy#SQL}, and summed by the database when the device is not indexed.
+     */
+    public double computeCost(final Long id) {
+        final var cost = this.strategy == CostStrategy.SQL ? OptionalDouble.empty() : this.subscriptionIndex.findCost(id);
+        return cost.isPresent() ? cost.getAsDouble() : this.deviceRepository.sumServicesPriceById(id);
+    }
+
+    /**
+     * Computes the cost of the given devices, bypassing the cache: the indexed devices are computed
+     * from the index, unless the strategy is {@link CostStrategy#SQL}, and all the others with a
+     * single grouped query.
+     *
+     * @return the cost of each device, 0 for the devices without services or not found.
+     */
+    public Map<Long, Double> computeCosts(final Collection<Long> ids) {
+        final var costs = new HashMap<Long, Double>(ids.size() * 4 / 3 + 1);
+        final var notIndexedIds = new ArrayList<Long>();
+        for (final var id : ids) {
+            final var cost = this.strategy == CostStrategy.SQL ? OptionalDouble.empty() : this.subscriptionIndex.findCost(id);
+            costs.put(id, cost.orElse(0));
+            if (cost.isEmpty()) notIndexedIds.add(id);
+        }
+        if (!notIndexedIds.isEmpty()) {
+            costs.putAll(this.deviceRepository.sumServicesPriceByIds(notIndexedIds)
+                                              .stream()
+                                              .collect(toMap(DeviceCost::getId, DeviceCost::getCost)));
+        }
+        return costs;
+    }
+
+    /**
+     * @return the cost of all the devices of the customer, summed by the database.
+     */
+    public double computeCustomerCost(final Long customerId) {
+        return this.deviceRepository.sumServicesPriceByCustomerId(customerId);
+    }
+}
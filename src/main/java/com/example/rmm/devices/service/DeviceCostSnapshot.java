@@ -0,0 +1,247 @@
+package com.example.rmm.devices.service;
+
+import com.example.rmm.devices.repository.DeviceJdbcRepository;
+import com.example.rmm.services.service.ServiceCatalog;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.core.annotation.Order;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import static java.nio.channels.FileChannel.MapMode.READ_ONLY;
+import static java.nio.channels.FileChannel.MapMode.READ_WRITE;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.nio.file.StandardOpenOption.*;
+import static org.springframework.core.Ordered.HIGHEST_PRECEDENCE;
+
+/**
+ * Persists the {@link LocalCache} device costs to {@code rmm.cache.device-cost.snapshot.file},
+ * every {@code rmm.cache.device-cost.snapshot.interval} and on shutdown, and loads them back at
+ * startup, so that a restarted instance reads the costs from the cache right away.
+ * <p>
+ * The snapshot is a memory-mapped file: a header with the change marker of the database when
+ * written, followed by a {@code long} device ID and {@code double} cost pair per device. It is
+ * only loaded if the database has the same marker, as any cost could have changed otherwise.
+ * <p>
+ * The marker is the {@code device_change_seq} sequence, along with the ETag of the services catalog
+ * the cached costs are computed with. Device writes run within {@link #startChange()}, which moves
+ * the sequence on before the write: the sequence is not transactional, so an instance stopping in
+ * the middle of a write leaves the snapshots taken before it outdated. A snapshot is taken while no
+ * write is in progress, so every write before it has its cost update queued, and its costs are at
+ * least as new as its marker. The catalog ETag is only taken once the costs are updated with it,
+ * see {@link #catalogChange(Runnable)}.
+ * <p>
+ * The marker is only maintained while {@code rmm.cache.device-cost.snapshot.file} is set.
+ * <p>
+ * Loaded before the warm-up, which then computes the costs of the devices not in the snapshot only.
+ */
+@Slf4j
+@Component
+@Order(HIGHEST_PRECEDENCE)
+public class DeviceCostSnapshot implements ApplicationRunner {
+
+    private static final int MAGIC = 0x524D4D43;
+    private static final int FORMAT_VERSION = 1;
+    private static final int ENTRY_BYTES = Long.BYTES + Double.BYTES;
+    private static final Change NO_CHANGE = () -> {};
+
+    private final LocalCache cache;
+    private final DeviceJdbcRepository deviceJdbcRepository;
+    private final ServiceCatalog serviceCatalog;
+    private final Path file;
+    // Device writes in progress share the lock, a snapshot takes it exclusively
+    private final ReadWriteLock changes = new ReentrantReadWriteLock();
+    // One snapshot written or loaded at a time. Not a monitor, as a virtual thread
+    // doing IO within synchronized would pin its carrier thread
+    private final Lock files = new ReentrantLock();
+    private volatile String catalogETag;
+
+    public DeviceCostSnapshot(
+            final LocalCache cache,
+            final DeviceJdbcRepository deviceJdbcRepository,
+            final ServiceCatalog serviceCatalog,
+            @Value("${rmm.cache.device-cost.snapshot.file:#{null}}") final String file
+    ) {
+        this.cache = cache;
+        this.deviceJdbcRepository = deviceJdbcRepository;
+        this.serviceCatalog = serviceCatalog;
+        this.file = file == null || file.isBlank() ? null : Path.of(file);
+    }
+
+    @Override
+    public void run(final ApplicationArguments args) {
+        // The cache is empty or warmed up with the current catalog
+        this.catalogETag = this.serviceCatalog.eTag();
+        if (this.file != null && Files.exists(this.file)) load(this.file);
+    }
+
+    /**
+     * Starts a device write changing costs, to be closed once the write is committed and
+     * its cost updates are queued. Moves the change marker on, unless there is no snapshot file.
+     */
+    public Change startChange() {
+        if (this.file == null) return NO_CHANGE;
+        this.changes.readLock().lock();
+        try {
+            this.deviceJdbcRepository.incrementChangeMarker();
+        } catch (RuntimeException e) {
+            this.changes.readLock().unlock();
+            throw e;
+        }
+        return this.changes.readLock()::unlock;
+    }
+
+    /**
+     * Runs the update of the cached costs after a services catalog change, the next snapshots
+     * are taken with the catalog ETag from then on. A snapshot taken before is outdated.
+     */
+    public void catalogChange(final Runnable costsUpdate) {
+        if (this.file == null) {
+            costsUpdate.run();
+            return;
+        }
+        this.changes.readLock().lock();
+        try {
+            costsUpdate.run();
+            this.catalogETag = this.serviceCatalog.eTag();
+        } finally {
+            this.changes.readLock().unlock();
+        }
+    }
+
+    @Scheduled(
+            initialDelayString = "${rmm.cache.device-cost.snapshot.interval:PT5M}",
+            fixedDelayString = "${rmm.cache.device-cost.snapshot.interval:PT5M}"
+    )
+    public void writePeriodically() {
+        if (this.file != null) write(this.file);
+    }
+
+    @PreDestroy
+    public void writeOnShutdown() {
+        if (this.file != null) write(this.file);
+    }
+
+    /**
+     * Writes the cached costs to the given file, replacing it once completely written.
+     *
+     * @return the number of costs written, or -1 if the snapshot could not be written.
+     */
+    public int write(final Path file) {
+        this.files.lock();
+        try {
+            return writeSnapshot(file);
+        } finally {
+            this.files.unlock();
+        }
+    }
+
+    /**
+     * Caches the costs of the given snapshot file, unless the database changed since it was written.
+     *
+     * @return the number of costs loaded.
+     */
+    public int load(final Path file) {
+        this.files.lock();
+        try {
+            return loadSnapshot(file);
+        } finally {
+            this.files.unlock();
+        }
+    }
+
+    private int writeSnapshot(final Path file) {
+        final var start = System.nanoTime();
+        try {
+            // Take the marker and the costs while no device write is in progress
+            final byte[] marker;
+            final var costs = new HashMap<Long, Double>();
+            this.changes.writeLock().lock();
+            try {
+                if (this.catalogETag == null) throw new IllegalStateException("The costs are not loaded yet");
+                marker = (this.deviceJdbcRepository.findChangeMarker() + "-" + this.catalogETag).getBytes(StandardCharsets.UTF_8);
+                this.cache.forEach(costs::put);
+            } finally {
+                this.changes.writeLock().unlock();
+            }
+
+            // Write to a temporary file, so that a crash never leaves a partial snapshot behind
+            final var parent = file.toAbsolutePath().getParent();
+            if (parent != null) Files.createDirectories(parent);
+            final var temporaryFile = file.resolveSibling(file.getFileName() + ".tmp");
+            final long size = 3 * Integer.BYTES + marker.length + (long) costs.size() * ENTRY_BYTES;
+            try (final var channel = FileChannel.open(temporaryFile, CREATE, TRUNCATE_EXISTING, READ, WRITE)) {
+                final var buffer = channel.map(READ_WRITE, 0, size);
+                buffer.putInt(MAGIC).putInt(FORMAT_VERSION).putInt(marker.length).put(marker);
+                buffer.putInt(costs.size());
+                costs.forEach((id, cost) -> buffer.putLong(id).putDouble(cost));
+                buffer.force();
+            }
+            Files.move(temporaryFile, file, REPLACE_EXISTING, ATOMIC_MOVE);
+
+            log.info("Device cost snapshot written with {} device(s) in {} ms",
+                     costs.size(), (System.nanoTime() - start) / 1_000_000);
+            return costs.size();
+        } catch (IOException | RuntimeException e) {
+            log.warn("Could not write the device cost snapshot to {}", file, e);
+            return -1;
+        }
+    }
+
+    private int loadSnapshot(final Path file) {
+        final var start = System.nanoTime();
+        try (final var channel = FileChannel.open(file, READ)) {
+            // The file is mapped, the costs are read from the page cache without copying it to the heap first
+            final var buffer = channel.map(READ_ONLY, 0, channel.size());
+            if (buffer.getInt() != MAGIC || buffer.getInt() != FORMAT_VERSION) {
+                log.warn("Ignoring the device cost snapshot {}, unknown format", file);
+                return 0;
+            }
+            final var marker = new byte[buffer.getInt()];
+            buffer.get(marker);
+            final var currentMarker = this.deviceJdbcRepository.findChangeMarker() + "-" + this.serviceCatalog.eTag();
+            if (!currentMarker.equals(new String(marker, StandardCharsets.UTF_8))) {
+                log.info("Ignoring the device cost snapshot {}, the database changed since it was written", file);
+                return 0;
+            }
+
+            final int count = buffer.getInt();
+            final var costs = new HashMap<Long, Double>(count * 4 / 3 + 1);
+            for (int i = 0; i < count; i++) costs.put(buffer.getLong(), buffer.getDouble());
+            this.cache.putAllIfAbsent(costs);
+
+            log.info("Device cost snapshot loaded with {} device(s) in {} ms",
+                     count, (System.nanoTime() - start) / 1_000_000);
+            return count;
+        } catch (IOException | BufferUnderflowException | NegativeArraySizeException e) {
+            log.warn("Could not load the device cost snapshot {}", file, e);
+            return 0;
+        }
+    }
+
+    /**
+     * A device write in progress, see {@link #startChange()}.
+     */
+    @FunctionalInterface
+    public interface Change extends AutoCloseable {
+
+        @Override
+        void close();
+    }
+}
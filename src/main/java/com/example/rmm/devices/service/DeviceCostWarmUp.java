@@ -0,0 +1,92 @@
+package com.example.rmm.devices.service;
+
+import com.example.rmm.devices.repository.DeviceJdbcRepository;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Precomputes the services cost of the devices into the {@link LocalCache} at startup, so
+ * that the first reads after a restart do not all miss the cache and compute the costs one
+ * device at a time. Opt-in with {@code rmm.cache.device-cost.warm-up.enabled}.
+ * <p>
+ * The devices IDs are split into ranges of {@code chunk-size} IDs, and the cost of each
+ * range is computed by a single aggregate over {@code device_service JOIN service}, with
+ * {@code parallelism} ranges computed at the same time. No more devices than the cache
+ * can hold are warmed up.
+ * <p>
+ * The application runners run before the application is ready, so the readiness probe
+ * reports the application as out of service until the warm-up is done.
+ */
+@Slf4j
+@Component
+public class DeviceCostWarmUp implements ApplicationRunner {
+
+    private final LocalCache cache;
+    private final DeviceJdbcRepository deviceJdbcRepository;
+    private final boolean enabled;
+    private final int chunkSize;
+    private final int parallelism;
+    private final long maximumSize;
+
+    public DeviceCostWarmUp(
+            final LocalCache cache,
+            final DeviceJdbcRepository deviceJdbcRepository,
+            @Value("${rmm.cache.device-cost.warm-up.enabled:false}") final boolean enabled,
+            @Value("${rmm.cache.device-cost.warm-up.chunk-size:10000}") final int chunkSize,
+            @Value("${rmm.cache.device-cost.warm-up.parallelism:4}") final int parallelism,
+            @Value("${rmm.cache.device-cost.maximum-size:100000}") final long maximumSize
+    ) {
+        this.cache = cache;
+        this.deviceJdbcRepository = deviceJdbcRepository;
+        this.enabled = enabled;
+        this.chunkSize = chunkSize;
+        this.parallelism = parallelism;
+        this.maximumSize = maximumSize;
+    }
+
+    @Override
+    public void run(final ApplicationArguments args) throws Exception {
+        if (this.enabled) warmUp();
+    }
+
+    /**
+     * Caches the cost of the devices not cached yet.
+     *
+     * @return the number of devices warmed up.
+     */
+    public long warmUp() throws InterruptedException, ExecutionException {
+        final var start = System.nanoTime();
+        final var upperBound = this.deviceJdbcRepository.findIdsUpperBound();
+        final var warmedUp = new AtomicLong();
+
+        // Each chunk is a range of IDs, so the aggregate reads a contiguous part of the device_service primary key
+        final var chunks = new ArrayList<Future<?>>();
+        try (final var executor = Executors.newFixedThreadPool(this.parallelism)) {
+            for (long fromId = 1; fromId <= upperBound; fromId += this.chunkSize) {
+                final var chunkFromId = fromId;
+                final var chunkToId = Math.min(fromId + this.chunkSize - 1, upperBound);
+                chunks.add(executor.submit(() -> {
+                    // Stop once the cache is full, any further cost would just evict a warmed up one
+                    if (warmedUp.get() >= this.maximumSize) return;
+                    final var costs = this.deviceJdbcRepository.findServicesCosts(chunkFromId, chunkToId);
+                    this.cache.putAllIfAbsent(costs);
+                    warmedUp.addAndGet(costs.size());
+                }));
+            }
+            for (final var chunk : chunks) chunk.get();
+        }
+
+        log.info("Device cost cache warmed up with {} device(s) in {} chunk(s) in {} ms",
+                 warmedUp.get(), chunks.size(), (System.nanoTime() - start) / 1_000_000);
+        return warmedUp.get();
+    }
+}
@@ -1,6 +1,5 @@
 package com.example.rmm.devices.service;
 
-import com.example.rmm.devices.controller.dtos.BasicDeviceData;
 import com.example.rmm.devices.controller.dtos.FullDeviceData;
 import com.example.rmm.devices.controller.dtos.SaveDeviceRequest;
 import com.example.rmm.devices.controller.dtos.SaveDeviceResponse;
@@ -21,14 +20,6 @@ final class DeviceMapper {
         );
     }
 
-    public static BasicDeviceData deviceToBasicDeviceData(final Device device) {
-        return BasicDeviceData.builder()
-                              .id(device.getId())
-                              .systemName(device.getSystemName())
-                              .type(device.getType())
-                              .build();
-    }
-
     public static FullDeviceData deviceToFullDeviceData(
             final Device device,
             final List<FullServiceData> services,
@@ -1,16 +1,37 @@
 package com.example.rmm.devices.service;
 
+import com.example.rmm.common.exceptions.ConflictException;
+import com.example.rmm.common.persistence.BaseEntity;
+import com.example.rmm.common.persistence.SecondLevelCache;
+import com.example.rmm.customers.repository.Subscription;
+import com.example.rmm.customers.service.CustomerCostService;
 import com.example.rmm.devices.controller.dtos.*;
+import com.example.rmm.devices.controller.dtos.ModifyDeviceServicesRequest.Action;
+import com.example.rmm.devices.repository.Device;
+import com.example.rmm.devices.repository.DeviceJdbcRepository;
 import com.example.rmm.devices.repository.DeviceRepository;
+import com.example.rmm.devices.repository.DevicesFilter;
+import com.example.rmm.devices.repository.ServicesLink;
 import com.example.rmm.services.controller.dtos.FullServiceData;
 import com.example.rmm.services.repository.ServiceRepository;
+import com.example.rmm.services.service.ServiceCatalog;
+import com.example.rmm.services.service.ServiceChangedEvent;
 import com.example.rmm.services.service.ServiceMapper;
+import com.example.rmm.services.service.ServicePriceChangedEvent;
+import jakarta.validation.ConstraintViolation;
+import jakarta.validation.Validator;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.dao.OptimisticLockingFailureException;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.event.TransactionalEventListener;
+import org.springframework.transaction.support.TransactionTemplate;
 
-import java.util.List;
-import java.util.Set;
+import java.util.*;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
 
 @Slf4j
 @Service
@@ -18,36 +39,143 @@ import java.util.Set;
 public class DeviceService {
 
     private static final Set<Long> DEFAULT_DEVICES_BASE_SERVICES_IDS = Set.of(1L);
+    private static final String DUPLICATED_DEVICE = "Provided data is violating a data integrity constraint";
+    private static final String CONCURRENT_MODIFICATION = "The device was modified concurrently, please try again";
+    private static final int MAX_MODIFY_ATTEMPTS = 3;
+    private static final long MODIFY_RETRY_BACKOFF_MILLIS = 20;
+    private static final int MODIFY_CHUNK_SIZE = 1_000;
 
     private final LocalCache cache;
+    private final DeviceSubscriptionIndex subscriptionIndex;
+    private final DeviceCostEngine costEngine;
     private final DeviceRepository deviceRepository;
+    private final DeviceJdbcRepository deviceJdbcRepository;
+    private final ServiceCatalog serviceCatalog;
     private final ServiceRepository serviceRepository;
+    private final CustomerCostService customerCostService;
+    private final SecondLevelCache secondLevelCache;
+    private final DeviceCostSnapshot costSnapshot;
+    private final TransactionTemplate transactionTemplate;
+    private final Validator validator;
 
     public SaveDeviceResponse save(final SaveDeviceRequest request) {
         // Get the base services for the device given its type
         final var baseServicesIds = getBaseServiceIdsByDeviceType(request.type());
-        final var deviceBaseServices = this.serviceRepository.findAllById(baseServicesIds);
+        final var deviceBaseServices = this.serviceCatalog.findAllById(baseServicesIds);
 
         // Map from DTO to JPA entity, and add the device base services
         final var device = DeviceMapper.saveDeviceRequestToDevice(request);
         device.addServices(deviceBaseServices);
 
-        // Persist the device, map from JPA entity to the response DTO and return
-        final var savedDevice = this.deviceRepository.save(device);
+        try (final var change = this.costSnapshot.startChange()) {
+            // Persist the device, along with its customer subscriptions in the same transaction
+            final var savedDevice = this.transactionTemplate.execute(status -> {
+                final var saved = this.deviceRepository.saveAndFlush(device);
+                this.customerCostService.addDevices(subscriptions(saved.getCustomerId(), servicesIds(saved), 1));
+                return saved;
+            });
 
-        // Update the cache asynchronously
-        this.cache.put(
-                savedDevice.getId(),
-                () -> deviceBaseServices.stream().mapToDouble(service -> service.getPrice()).sum()
+            // Index the device services and update the cache asynchronously, with the cost computed from the index
+            this.subscriptionIndex.put(savedDevice.getId(), savedDevice.getVersion(), servicesIds(device));
+            this.cache.put(savedDevice.getId(), () -> this.costEngine.computeCost(savedDevice.getId()));
+
+            // Map from JPA entity to the response DTO and return
+            return DeviceMapper.deviceToSaveDeviceResponse(savedDevice);
+        }
+    }
+
+    /**
+     * Saves the given devices with JDBC batches. Each device is validated on its
+     * own, and the result of saving it is reported at its index.
+     */
+    public SaveDevicesBatchResponse saveAll(final SaveDevicesBatchRequest request) {
+        final var requests = request.devices();
+        final var errors = new HashMap<Integer, List<String>>();
+        final var devices = new LinkedHashMap<Integer, Device>();
+
+        // Load the base services of all the device types at once
+        final var baseServices = this.serviceCatalog.findAllById(
+                Arrays.stream(Type.values()).flatMap(type -> getBaseServiceIdsByDeviceType(type).stream()).distinct().toList()
         );
 
-        // Return mapped DTO
-        return DeviceMapper.deviceToSaveDeviceResponse(savedDevice);
+        // Validate every device and map the valid ones, with their base services, to JPA entities
+        for (int i = 0; i < requests.size(); i++) {
+            final var deviceRequest = requests.get(i);
+            final var deviceErrors = validate(deviceRequest);
+            if (!deviceErrors.isEmpty()) {
+                errors.put(i, deviceErrors);
+                continue;
+            }
+            final var baseServicesIds = getBaseServiceIdsByDeviceType(deviceRequest.type());
+            final var device = DeviceMapper.saveDeviceRequestToDevice(deviceRequest);
+            device.addServices(baseServices.stream().filter(service -> baseServicesIds.contains(service.getId())).toList());
+            devices.put(i, device);
+        }
+
+        final var savedIds = new ArrayList<Long>();
+        try (final var change = this.costSnapshot.startChange()) {
+            // Persist the valid devices, along with their customers subscriptions, in a single transaction.
+            // The duplicated devices are left without ID.
+            this.transactionTemplate.executeWithoutResult(status -> {
+                this.deviceJdbcRepository.insertAll(List.copyOf(devices.values()));
+                final var subscriptions = new HashMap<Subscription, Long>();
+                for (final var device : devices.values()) {
+                    if (device.getId() != null) addSubscriptions(subscriptions, device.getCustomerId(), servicesIds(device), 1);
+                }
+                this.customerCostService.addDevices(subscriptions);
+            });
+
+            // Index the saved devices, then cache their costs computed from the index
+            devices.forEach((index, device) -> {
+                if (device.getId() == null) {
+                    errors.put(index, List.of(DUPLICATED_DEVICE));
+                    return;
+                }
+                // The devices are inserted with the initial version
+                this.subscriptionIndex.put(device.getId(), 0, servicesIds(device));
+                savedIds.add(device.getId());
+            });
+            this.cache.putAll(this.costEngine.computeCosts(savedIds));
+        }
+
+        // Report the result of each device
+        final var results = new ArrayList<SaveDevicesBatchResponse.Result>(requests.size());
+        for (int i = 0; i < requests.size(); i++) {
+            final var device = devices.get(i);
+            results.add(new SaveDevicesBatchResponse.Result(
+                    i,
+                    errors.containsKey(i) ? null : device.getId(),
+                    errors.getOrDefault(i, List.of())
+            ));
+        }
+        return SaveDevicesBatchResponse.builder()
+                                       .saved(savedIds.size())
+                                       .failed(errors.size())
+                                       .results(results)
+                                       .build();
     }
 
+    /**
+     * Adds or removes the services of the device. When the device is modified concurrently
+     * the modification is attempted again on its latest version, up to {@value MAX_MODIFY_ATTEMPTS} times.
+     */
     public void modifyDeviceServices(final Long id, final ModifyDeviceServicesRequest request) {
+        try (final var change = this.costSnapshot.startChange()) {
+            final var modification = retryOnConflict(
+                    () -> this.transactionTemplate.execute(status -> applyServicesModification(id, request))
+            );
+
+            // Index the device services and update the cache asynchronously, from the index as it
+            // keeps the latest version when concurrent modifications are committed out of order
+            this.subscriptionIndex.put(id, modification.version(), modification.servicesIds());
+            this.cache.put(id, () -> this.costEngine.computeCost(id));
+        }
+    }
+
+    private ServicesModification applyServicesModification(final Long id, final ModifyDeviceServicesRequest request) {
         final var device = this.deviceRepository.findWithId(id);
-        final var services = this.serviceRepository.getAllById(request.servicesIds());
+        final var previousServicesIds = servicesIds(device);
+        final var services = this.serviceCatalog.getAllById(request.servicesIds());
         switch (request.action()) {
             case ADD -> device.addServices(services);
             case REMOVE -> {
@@ -61,45 +189,223 @@ public class DeviceService {
             }
         }
 
-        // Save device with updated services
+        // Save device with updated services, flushing to check and increment its version
         log.debug("Saving device - thread: " + Thread.currentThread().getName());
-        this.deviceRepository.save(device);
+        this.deviceRepository.saveAndFlush(device);
+
+        // Move the device from the subscriptions of the services removed to the ones of the services added
+        final var servicesIds = servicesIds(device);
+        final var subscriptions = subscriptions(device.getCustomerId(), servicesIds, 1);
+        addSubscriptions(subscriptions, device.getCustomerId(), previousServicesIds, -1);
+        this.customerCostService.addDevices(subscriptions);
+
+        return new ServicesModification(device.getVersion(), servicesIds);
+    }
+
+    private <T> T retryOnConflict(final Supplier<T> action) {
+        for (int attempt = 1; ; attempt++) {
+            try {
+                return action.get();
+            } catch (final OptimisticLockingFailureException exception) {
+                if (attempt == MAX_MODIFY_ATTEMPTS) throw new ConflictException(CONCURRENT_MODIFICATION, exception);
+                log.debug("Device modified concurrently - attempt {} of {}", attempt, MAX_MODIFY_ATTEMPTS);
+
+                // Wait a random time, growing with every attempt, so the attempts do not collide again
+                try {
+                    Thread.sleep(ThreadLocalRandom.current().nextLong(1, MODIFY_RETRY_BACKOFF_MILLIS * attempt));
+                } catch (final InterruptedException interruptedException) {
+                    Thread.currentThread().interrupt();
+                    throw new ConflictException(CONCURRENT_MODIFICATION, exception);
+                }
+            }
+        }
+    }
+
+    /**
+     * Adds or removes the services to all the devices matching the request, in chunks of
+     * {@value MODIFY_CHUNK_SIZE} devices by ID with batched SQL, then updates the index and
+     * the cache of the devices of each chunk whose services changed.
+     */
+    public ModifyDevicesServicesResponse modifyDevicesServices(final ModifyDevicesServicesRequest request) {
+        final var servicesIds = this.serviceCatalog.getAllById(request.servicesIds()).stream().map(BaseEntity::getId).toList();
+        final var filter = new DevicesFilter(request.customerId(), typeName(request.type()), request.devicesIds());
+
+        // Exclude the base services of each device type from the list of services to be removed
+        final var servicesIdsByType = new HashMap<String, List<Long>>();
+        if (request.action() == Action.REMOVE) {
+            final var types = request.type() == null ? Type.values() : new Type[]{request.type()};
+            for (final var type : types) {
+                final var baseServicesIds = getBaseServiceIdsByDeviceType(type);
+                servicesIdsByType.put(type.name(), servicesIds.stream().filter(id -> !baseServicesIds.contains(id)).toList());
+            }
+        }
 
-        // Update the cache asynchronously
-        this.cache.put(id, () -> device.getServices().stream().mapToDouble(service -> service.getPrice()).sum());
+        // The matching devices are modified in chunks, each in its own transaction, so they are never all held in memory
+        int devices = 0;
+        int links = 0;
+        long afterId = 0;
+        List<Long> devicesIds;
+        do {
+            devicesIds = this.deviceJdbcRepository.findIds(filter, afterId, MODIFY_CHUNK_SIZE);
+            if (devicesIds.isEmpty()) break;
+            afterId = devicesIds.get(devicesIds.size() - 1);
+            devices += devicesIds.size();
+            links += modifyDevicesServices(request.action(), devicesIds, servicesIds, servicesIdsByType);
+        } while (devicesIds.size() == MODIFY_CHUNK_SIZE);
+
+        return ModifyDevicesServicesResponse.builder().devices(devices).links(links).build();
+    }
+
+    /**
+     * Adds or removes the services of a chunk of devices, along with their customers subscriptions,
+     * then updates the index and the cache of the devices whose services changed.
+     *
+     * @return the number of links added or removed.
+     */
+    private int modifyDevicesServices(
+            final Action action,
+            final List<Long> devicesIds,
+            final List<Long> servicesIds,
+            final Map<String, List<Long>> servicesIdsByType
+    ) {
+        try (final var change = this.costSnapshot.startChange()) {
+            final var links = this.transactionTemplate.execute(status -> {
+                final var modifiedLinks = switch (action) {
+                    case ADD -> this.deviceJdbcRepository.addServices(devicesIds, servicesIds);
+                    case REMOVE -> this.deviceJdbcRepository.removeServices(devicesIds, servicesIdsByType);
+                };
+                final long devices = action == Action.ADD ? 1 : -1;
+                final var subscriptions = new HashMap<Subscription, Long>();
+                modifiedLinks.forEach(link -> subscriptions.merge(new Subscription(link.customerId(), link.serviceId()), devices, Long::sum));
+                this.customerCostService.addDevices(subscriptions);
+                return modifiedLinks;
+            });
+            if (links.isEmpty()) return 0;
+
+            // Index the current services of the modified devices and compute their cost from it
+            final var modifiedIds = links.stream().map(ServicesLink::deviceId).distinct().toList();
+            this.secondLevelCache.evictEntities(Device.class, modifiedIds);
+            this.secondLevelCache.evictCollections(Device.SERVICES_ROLE, modifiedIds);
+            for (final var device : this.deviceJdbcRepository.findServicesIds(modifiedIds)) {
+                this.subscriptionIndex.put(device.id(), device.version(), device.servicesIds());
+            }
+            this.cache.putAll(this.costEngine.computeCosts(modifiedIds));
+            return links.size();
+        }
+    }
+
+    /**
+     * @return a strong entity tag of the device full data, derived from the device version
+     * and the services catalog, so it's computed without loading the device services.
+     */
+    public String findETag(final Long id) {
+        final var device = this.deviceRepository.findWithIdWithoutServices(id);
+        return device.getId() + "-" + device.getVersion() + "-" + this.serviceCatalog.eTag();
     }
 
     public FullDeviceData findById(final Long id) {
-        // Find the device with the given ID
-        final var device = this.deviceRepository.findWithId(id);
+        // Only the device is loaded when its services are indexed, otherwise they are loaded along with it
+        final var indexedServicesIds = this.subscriptionIndex.findServicesIds(id);
+        final var device = indexedServicesIds.isPresent()
+                ? this.deviceRepository.findWithIdWithoutServices(id)
+                : this.deviceRepository.findWithId(id);
 
-        // Map the device services to their DTOs
-        final var services = device.getServices()
-                                   .stream()
-                                   .map(ServiceMapper::serviceToFullServiceData)
-                                   .toList();
+        // Map the device services, from the catalog when indexed, to their DTOs
+        final var services = indexedServicesIds.map(this.serviceCatalog::findAllById)
+                                               .orElseGet(() -> List.copyOf(device.getServices()))
+                                               .stream()
+                                               .map(ServiceMapper::serviceToFullServiceData)
+                                               .toList();
 
-        // Get the device services calculated cost
-        final var cost = getDeviceServicesCost(id, services);
+        // Get the device services cost, from its services already loaded when not indexed
+        final var cost = this.costEngine.findCost(id, () -> services.stream().mapToDouble(FullServiceData::price).sum());
 
         // Return the full device data
         return DeviceMapper.deviceToFullDeviceData(device, services, cost);
     }
 
-    public List<BasicDeviceData> findAll() {
-        return this.deviceRepository.findAll()
-                                    .stream()
-                                    .map(DeviceMapper::deviceToBasicDeviceData)
-                                    .toList();
+    @Transactional(readOnly = true)
+    public List<BasicDeviceData> findAll(final Long afterId, final Long customerId, final Type type, final int limit) {
+        return this.deviceRepository.findPage(afterId, customerId, typeName(type), limit);
+    }
+
+    public void streamAll(final Long customerId, final Type type, final Consumer<BasicDeviceData> consumer) {
+        this.deviceJdbcRepository.streamAll(customerId, typeName(type), consumer);
     }
 
     public void delete(final Long id) {
-        this.deviceRepository.deleteById(id);
-        this.cache.remove(id);
+        try (final var change = this.costSnapshot.startChange()) {
+            // Delete the device, along with its customer subscriptions in the same transaction
+            final var deleted = this.transactionTemplate.execute(status -> {
+                final var device = this.deviceJdbcRepository.delete(id);
+                device.ifPresent(removed -> this.customerCostService.addDevices(subscriptions(removed.customerId(), removed.servicesIds(), -1)));
+                return device;
+            });
+            if (deleted.isPresent()) {
+                this.secondLevelCache.evictEntities(Device.class, List.of(id));
+                this.secondLevelCache.evictCollections(Device.SERVICES_ROLE, List.of(id));
+            }
+            this.subscriptionIndex.remove(id);
+            this.cache.remove(id);
+        }
+    }
+
+    @TransactionalEventListener
+    public void onServiceChanged(final ServiceChangedEvent event) {
+        this.costSnapshot.catalogChange(() -> {
+            // Only the devices subscribed to the service have a cached cost that is no longer valid
+            log.debug("Service {} changed - invalidating the cost of {} device(s)", event.serviceId(), event.devicesIds().size());
+            this.cache.removeAll(event.devicesIds());
+
+            // Their services links were removed by the database, so the cached collections are stale too
+            this.secondLevelCache.evictCollections(Device.SERVICES_ROLE, event.devicesIds());
+        });
+    }
+
+    @TransactionalEventListener
+    public void onServicePriceChanged(final ServicePriceChangedEvent event) {
+        // Only the subscribers have a cached cost that is no longer valid. They are read once committed: a device
+        // subscribed concurrently is either found, or computes its cost with the refreshed catalog itself.
+        final var devicesIds = this.serviceRepository.findSubscribedDevicesIds(event.serviceId());
+        log.debug("Service {} price changed - updating the cost of {} device(s)", event.serviceId(), devicesIds.size());
+
+        // Their costs are computed again from the index, already repriced by the catalog refresh, without waiting
+        // for them. The costs of the devices not indexed are computed again when read, as their services are not known.
+        this.costSnapshot.catalogChange(() -> this.cache.updateAll(devicesIds, id -> () -> {
+            final var indexedCost = this.subscriptionIndex.findCost(id);
+            return indexedCost.isPresent() ? indexedCost.getAsDouble() : null;
+        }));
+    }
+
+    private List<String> validate(final SaveDeviceRequest request) {
+        if (request == null) return List.of("The device is required");
+        return this.validator.validate(request).stream().map(ConstraintViolation::getMessage).toList();
     }
 
-    private double getDeviceServicesCost(final Long id, final List<FullServiceData> services) {
-        return this.cache.get(id, () -> services.stream().mapToDouble(FullServiceData::price).sum());
+    private static List<Long> servicesIds(final Device device) {
+        return device.getServices().stream().map(BaseEntity::getId).toList();
+    }
+
+    /**
+     * @return the given number of devices in the subscriptions of the customer to each of the services.
+     */
+    private static Map<Subscription, Long> subscriptions(final Long customerId, final Collection<Long> servicesIds, final long devices) {
+        final var subscriptions = new HashMap<Subscription, Long>();
+        addSubscriptions(subscriptions, customerId, servicesIds, devices);
+        return subscriptions;
+    }
+
+    private static void addSubscriptions(
+            final Map<Subscription, Long> subscriptions,
+            final Long customerId,
+            final Collection<Long> servicesIds,
+            final long devices
+    ) {
+        servicesIds.forEach(serviceId -> subscriptions.merge(new Subscription(customerId, serviceId), devices, Long::sum));
+    }
+
+    private static String typeName(final Type type) {
+        return type == null ? null : type.name();
     }
 
     private Set<Long> getBaseServiceIdsByDeviceType(final Type type) {
@@ -108,4 +414,12 @@ public class DeviceService {
             case WINDOWS_WORKSTATION, LINUX, MAC, WINDOWS_SERVER -> DEFAULT_DEVICES_BASE_SERVICES_IDS;
         };
     }
+
+    /**
+     * Outcome of a committed modification of the device services.
+     */
+    private record ServicesModification(
+            Long version,
+            List<Long> servicesIds
+    ) {}
 }
@@ -0,0 +1,220 @@
+package com.example.rmm.devices.service;
+
+import com.example.rmm.devices.repository.DeviceJdbcRepository;
+import com.example.rmm.services.repository.Service;
+import com.example.rmm.services.service.ServiceCatalog;
+import com.example.rmm.services.service.ServiceChangedEvent;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.SmartInitializingSingleton;
+import org.springframework.core.annotation.Order;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.event.TransactionalEventListener;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.springframework.core.Ordered.HIGHEST_PRECEDENCE;
+
+/**
+ * In-memory index of the services each device is subscribed to, built from
+ * {@code device_service} at startup and kept up to date by {@link DeviceService}.
+ * <p>
+ * Every service gets a bit, assigned on first use and never reassigned, and the
+ * subscriptions of a device are a {@code long[]} bitset: a single {@code long}
+ * while there are up to 64 services, around 90 bytes per device along with its
+ * map entry. The cost of a device is the sum of the prices, kept in a {@code float[]}
+ * vector indexed by bit, of its set bits.
+ * <p>
+ * Bitsets are never modified once indexed, an update replaces the bitset of the device.
+ * The bitset is preceded by the device version, so that an update committed before
+ * another one, but indexed after it, cannot replace the newer subscriptions.
+ */
+@Slf4j
+@Component
+public class DeviceSubscriptionIndex implements SmartInitializingSingleton {
+
+    private final DeviceJdbcRepository deviceJdbcRepository;
+    private final ServiceCatalog serviceCatalog;
+
+    // The device version followed by its bitset
+    private final Map<Long, long[]> subscriptions = new ConcurrentHashMap<>();
+    private final Map<Long, Integer> bits = new ConcurrentHashMap<>();
+    private volatile long[] servicesIdsByBit = new long[0];
+    private volatile Prices prices = new Prices(0, new float[0]);
+
+    public DeviceSubscriptionIndex(
+            final DeviceJdbcRepository deviceJdbcRepository,
+            final ServiceCatalog serviceCatalog,
+            final MeterRegistry meterRegistry
+    ) {
+        this.deviceJdbcRepository = deviceJdbcRepository;
+        this.serviceCatalog = serviceCatalog;
+        Gauge.builder("rmm.subscriptions.devices", this.subscriptions, Map::size)
+             .description("Devices in the subscriptions index")
+             .register(meterRegistry);
+    }
+
+    /**
+     * Builds the index once the database is initialized, before the application takes requests.
+     */
+    @Override
+    public void afterSingletonsInstantiated() {
+        final var start = System.nanoTime();
+        final var deviceServices = new ArrayList<Long>();
+        final var currentDevice = new long[]{-1, 0};
+
+        // The links are ordered by device, so a device is indexed once all its links are read
+        this.deviceJdbcRepository.streamServicesLinks((deviceId, deviceVersion, serviceId) -> {
+            if (deviceId != currentDevice[0]) {
+                if (!deviceServices.isEmpty()) put(currentDevice[0], currentDevice[1], deviceServices);
+                deviceServices.clear();
+                currentDevice[0] = deviceId;
+                currentDevice[1] = deviceVersion;
+            }
+            deviceServices.add(serviceId);
+        });
+        if (!deviceServices.isEmpty()) put(currentDevice[0], currentDevice[1], deviceServices);
+
+        log.info("Subscriptions index built with {} device(s) in {} ms",
+                 this.subscriptions.size(), (System.nanoTime() - start) / 1_000_000);
+    }
+
+    /**
+     * Indexes the services of the device at the given version, unless a newer version is already indexed.
+     */
+    public void put(final Long deviceId, final long version, final Collection<Long> servicesIds) {
+        // Get the bits first, so that the bitset is allocated with its final size
+        final var deviceBits = servicesIds.stream().mapToInt(this::bitOf).toArray();
+        final var entry = new long[1 + words(Arrays.stream(deviceBits).max().orElse(0) + 1)];
+        entry[0] = version;
+        for (final int bit : deviceBits) entry[1 + (bit >>> 6)] |= 1L << bit;
+        this.subscriptions.merge(deviceId, entry, (current, updated) -> current[0] > updated[0] ? current : updated);
+    }
+
+    public void remove(final Long deviceId) {
+        this.subscriptions.remove(deviceId);
+    }
+
+    /**
+     * @return the IDs of the services the device is subscribed to, empty if the device is not indexed.
+     */
+    public Optional<List<Long>> findServicesIds(final Long deviceId) {
+        final var entry = this.subscriptions.get(deviceId);
+        if (entry == null) return Optional.empty();
+
+        final var servicesIdsByBit = this.servicesIdsByBit;
+        final var servicesIds = new ArrayList<Long>();
+        forEachBit(entry, bit -> servicesIds.add(servicesIdsByBit[bit]));
+        return Optional.of(servicesIds);
+    }
+
+    /**
+     * @return the services cost of the device, empty if the device is not indexed.
+     */
+    public OptionalDouble findCost(final Long deviceId) {
+        final var entry = this.subscriptions.get(deviceId);
+        return entry == null ? OptionalDouble.empty() : OptionalDouble.of(cost(entry, prices().values()));
+    }
+
+    /**
+     * Unsubscribes the affected devices from the changed service once the change is committed,
+     * before the listeners computing costs. The prices are read again from the services catalog
+     * when it is refreshed.
+     */
+    @Order(HIGHEST_PRECEDENCE + 1)
+    @TransactionalEventListener
+    public void onServiceChanged(final ServiceChangedEvent event) {
+        final var bit = this.bits.get(event.serviceId());
+        if (bit == null) return;
+        final var word = 1 + (bit >>> 6);
+        final var mask = ~(1L << bit);
+        for (final var deviceId : event.devicesIds()) {
+            this.subscriptions.computeIfPresent(deviceId, (id, entry) -> {
+                if (word >= entry.length) return entry;
+                final var copy = entry.clone();
+                copy[word] &= mask;
+                return copy;
+            });
+        }
+    }
+
+    public void clear() {
+        this.subscriptions.clear();
+    }
+
+    private int bitOf(final Long serviceId) {
+        final var bit = this.bits.get(serviceId);
+        return bit != null ? bit : assignBit(serviceId);
+    }
+
+    private synchronized int assignBit(final Long serviceId) {
+        final var assigned = this.bits.get(serviceId);
+        if (assigned != null) return assigned;
+
+        // Publish the service ID of the bit before the bit itself
+        final int bit = this.servicesIdsByBit.length;
+        final var servicesIdsByBit = Arrays.copyOf(this.servicesIdsByBit, bit + 1);
+        servicesIdsByBit[bit] = serviceId;
+        this.servicesIdsByBit = servicesIdsByBit;
+        this.bits.put(serviceId, bit);
+        return bit;
+    }
+
+    private Prices prices() {
+        // The prices vector is rebuilt when the catalog is refreshed or a service got a bit
+        final var current = this.prices;
+        final var servicesIdsByBit = this.servicesIdsByBit;
+        final var catalogVersion = this.serviceCatalog.version();
+        if (current.catalogVersion() == catalogVersion && current.values().length == servicesIdsByBit.length) {
+            return current;
+        }
+        final var values = new float[servicesIdsByBit.length];
+        for (int bit = 0; bit < values.length; bit++) {
+            values[bit] = this.serviceCatalog.findById(servicesIdsByBit[bit]).map(Service::getPrice).orElse(0f);
+        }
+        final var rebuilt = new Prices(catalogVersion, values);
+        this.prices = rebuilt;
+        return rebuilt;
+    }
+
+    private static double cost(final long[] entry, final float[] prices) {
+        // Dot product of the bitset and the prices vector, visiting the set bits only
+        double total = 0;
+        for (int word = 1; word < entry.length; word++) {
+            var bits = entry[word];
+            while (bits != 0) {
+                final int bit = ((word - 1) << 6) + Long.numberOfTrailingZeros(bits);
+                if (bit < prices.length) total += prices[bit];
+                bits &= bits - 1;
+            }
+        }
+        return total;
+    }
+
+    private static void forEachBit(final long[] entry, final BitConsumer consumer) {
+        for (int word = 1; word < entry.length; word++) {
+            var bits = entry[word];
+            while (bits != 0) {
+                consumer.accept(((word - 1) << 6) + Long.numberOfTrailingZeros(bits));
+                bits &= bits - 1;
+            }
+        }
+    }
+
+    private static int words(final int bits) {
+        return (bits + Long.SIZE - 1) >>> 6;
+    }
+
+    @FunctionalInterface
+    private interface BitConsumer {
+        void accept(int bit);
+    }
+
+    /**
+     * @param catalogVersion version of the services catalog the prices were read from.
+     * @param values         price of each service, indexed by its bit.
+     */
+    private record Prices(long catalogVersion, float[] values) {}
+}
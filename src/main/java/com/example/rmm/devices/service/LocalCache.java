@@ -1,36 +1,257 @@
 package com.example.rmm.devices.service;
 
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import jakarta.annotation.PreDestroy;
 import lombok.extern.slf4j.Slf4j;
-import org.springframework.scheduling.annotation.Async;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.*;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
 import java.util.function.Supplier;
 
+/**
+ * Bounded cache of device services cost, keyed by device ID.
+ * <p>
+ * Backed by Caffeine (W-TinyLFU eviction), so its memory footprint depends on
+ * {@code rmm.cache.device-cost.maximum-size} and not on the size of the fleet.
+ * Entries can optionally expire after {@code rmm.cache.device-cost.expire-after-write}.
+ * Its size, hits, misses and evictions are published as the {@code device-cost} cache metrics.
+ * <p>
+ * Puts and removes are applied asynchronously, but in order for each device: the device
+ * ID picks one of {@code rmm.cache.device-cost.update-stripes} single threaded executors,
+ * and only the latest pending update of a device is kept. A burst of updates to the same
+ * device is therefore coalesced into one evaluation of its last supplier, and an older
+ * cost can never overwrite a newer one. Reads see the pending update of a device, if any.
+ * <p>
+ * Each stripe queues up to {@code rmm.cache.device-cost.update-queue-capacity} updates, the
+ * writers wait for room once it's full, so a burst of writes cannot exhaust the memory.
+ */
 @Slf4j
 @Service
 public class LocalCache {
 
-    private static final Map<Long, Double> CACHE = new ConcurrentHashMap<>();
+    // Marks a pending removal, as the pending updates map does not accept null values
+    private static final Supplier<Double> REMOVAL = () -> null;
 
-    @Async
+    private final Cache<Long, Double> cache;
+    private final Map<Long, Supplier<Double>> pendingUpdates = new ConcurrentHashMap<>();
+    private final ThreadPoolExecutor[] stripes;
+    private final Counter coalescedUpdates;
+
+    public LocalCache(
+            @Value("${rmm.cache.device-cost.maximum-size:100000}") final long maximumSize,
+            @Value("${rmm.cache.device-cost.expire-after-write:#{null}}") final Duration expireAfterWrite,
+            @Value("${rmm.cache.device-cost.update-stripes:4}") final int updateStripes,
+            @Value("${rmm.cache.device-cost.update-queue-capacity:10000}") final int updateQueueCapacity,
+            @Value("${spring.threads.virtual.enabled:false}") final boolean virtualThreads,
+            final MeterRegistry meterRegistry
+    ) {
+        final var builder = Caffeine.newBuilder().maximumSize(maximumSize).recordStats();
+        if (expireAfterWrite != null && !expireAfterWrite.isZero()) builder.expireAfterWrite(expireAfterWrite);
+        this.cache = CaffeineCacheMetrics.monitor(meterRegistry, builder.<Long, Double>build(), "device-cost");
+
+        // One single threaded executor per stripe, so the updates of a device are applied in order
+        this.stripes = new ThreadPoolExecutor[updateStripes];
+        for (int i = 0; i < updateStripes; i++) {
+            final var threadBuilder = virtualThreads ? Thread.ofVirtual() : Thread.ofPlatform().daemon();
+            this.stripes[i] = new ThreadPoolExecutor(
+                    1, 1, 0, TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue<>(updateQueueCapacity),
+                    threadBuilder.name("device-cost-update-" + i).factory(),
+                    LocalCache::waitForRoom
+            );
+            Gauge.builder("rmm.cache.device-cost.update-queue", this.stripes[i], stripe -> stripe.getQueue().size())
+                 .description("Cost updates queued by the stripe")
+                 .tag("stripe", String.valueOf(i))
+                 .register(meterRegistry);
+        }
+
+        Gauge.builder("rmm.cache.device-cost.pending-updates", this.pendingUpdates, Map::size)
+             .description("Devices with a cost update not applied to the cache yet")
+             .register(meterRegistry);
+        this.coalescedUpdates = Counter.builder("rmm.cache.device-cost.coalesced-updates")
+                                       .description("Cost updates replaced by a newer one before being applied")
+                                       .register(meterRegistry);
+    }
+
+    /**
+     * Asynchronously caches the value of the given supplier, unless a newer update
+     * of the same key replaces it first.
+     */
     public void put(final Long key, final Supplier<Double> value) {
-        log.debug("Updating cache - thread: " + Thread.currentThread().getName());
-        CACHE.put(key, value.get());
+        enqueue(key, value);
+    }
+
+    /**
+     * Synchronously puts all the given values, meant for values already computed in bulk.
+     * The values are queued as well, so that they replace any older update of these keys.
+     */
+    public void putAll(final Map<Long, Double> values) {
+        values.forEach((key, value) -> enqueue(key, () -> value));
+        this.cache.putAll(values);
     }
 
-    @Async
+    /**
+     * Synchronously puts the given values of the keys not cached and without a pending
+     * update, meant for precomputed values that must never replace a newer one.
+     */
+    public void putAllIfAbsent(final Map<Long, Double> values) {
+        values.forEach((key, value) -> {
+            if (!this.pendingUpdates.containsKey(key)) this.cache.asMap().putIfAbsent(key, value);
+        });
+    }
+
+    /**
+     * Asynchronously removes the given key, after its previous updates.
+     */
     public void remove(final Long key) {
-        log.debug("Removing item from cache - thread: " + Thread.currentThread().getName());
-        CACHE.remove(key);
+        enqueue(key, REMOVAL);
+    }
+
+    /**
+     * Synchronously removes the given keys, so that no stale value can be read
+     * once this method returns. A removal is queued as well, to discard any
+     * update of these keys being applied concurrently.
+     */
+    public void removeAll(final Collection<Long> keys) {
+        keys.forEach(key -> enqueue(key, REMOVAL));
+        this.cache.invalidateAll(keys);
+    }
+
+    /**
+     * Asynchronously caches the value of the supplier of each given key that is cached or has a
+     * pending update, the other keys are left to be computed when read. The keys are split by
+     * stripe once, and each stripe gets a single task for all its keys, queued after their
+     * updates already queued. A supplier returning null removes the key.
+     */
+    public void updateAll(final Collection<Long> keys, final Function<Long, Supplier<Double>> value) {
+        final var values = this.cache.asMap();
+        final var keysByStripe = new ArrayList<List<Long>>(this.stripes.length);
+        for (int i = 0; i < this.stripes.length; i++) keysByStripe.add(new ArrayList<>());
+        for (final var key : keys) {
+            if (!values.containsKey(key) && !this.pendingUpdates.containsKey(key)) continue;
+            // As for a single update, a key with a pending update already has a task to apply the new one
+            if (this.pendingUpdates.put(key, value.apply(key)) != null) {
+                this.coalescedUpdates.increment();
+                continue;
+            }
+            keysByStripe.get(stripeOf(key)).add(key);
+        }
+
+        for (int i = 0; i < this.stripes.length; i++) {
+            final var stripeKeys = keysByStripe.get(i);
+            if (stripeKeys.isEmpty()) continue;
+            try {
+                this.stripes[i].execute(() -> stripeKeys.forEach(this::apply));
+            } catch (final RejectedExecutionException e) {
+                // Not queued, so no task would ever apply the pending updates, the costs are recalculated on the next read
+                log.warn("Could not queue the cost updates of {} device(s)", stripeKeys.size(), e);
+                stripeKeys.forEach(key -> {
+                    this.pendingUpdates.remove(key);
+                    this.cache.invalidate(key);
+                });
+            }
+        }
     }
 
     public Double get(final Long key, final Supplier<Double> value) {
-        return CACHE.computeIfAbsent(key, k -> value.get());
+        // A pending update is newer than the cached value
+        final var pending = this.pendingUpdates.get(key);
+        final var pendingValue = pending == null ? null : pending.get();
+        if (pendingValue != null) return pendingValue;
+        return this.cache.get(key, k -> value.get());
+    }
+
+    /**
+     * Passes each cached value to the consumer, except the ones with a pending update, as they are outdated.
+     */
+    public void forEach(final BiConsumer<Long, Double> consumer) {
+        // The pending updates are checked before reading the value, as an update is only
+        // forgotten once applied, the value read is then at least as new as the check
+        final var values = this.cache.asMap();
+        values.keySet().forEach(key -> {
+            if (this.pendingUpdates.containsKey(key)) return;
+            final var value = values.get(key);
+            if (value != null) consumer.accept(key, value);
+        });
     }
 
     public void clear() {
-        CACHE.clear();
+        this.pendingUpdates.clear();
+        this.cache.invalidateAll();
+    }
+
+    @PreDestroy
+    public void shutdown() throws InterruptedException {
+        for (final var stripe : this.stripes) stripe.shutdown();
+        for (final var stripe : this.stripes) stripe.awaitTermination(5, TimeUnit.SECONDS);
+    }
+
+    private void enqueue(final Long key, final Supplier<Double> update) {
+        // Only the first pending update of a key schedules a task, the next ones just replace it
+        if (this.pendingUpdates.put(key, update) != null) {
+            this.coalescedUpdates.increment();
+            return;
+        }
+        try {
+            this.stripes[stripeOf(key)].execute(() -> apply(key));
+        } catch (final RejectedExecutionException e) {
+            // Not queued, so no task would ever apply the pending update, the cost is recalculated on the next read
+            log.warn("Could not queue the cost update of device {}", key, e);
+            this.pendingUpdates.remove(key);
+            this.cache.invalidate(key);
+        }
+    }
+
+    private static void waitForRoom(final Runnable task, final ThreadPoolExecutor stripe) {
+        // Blocking keeps the updates of a device in order, running them on the caller would not
+        if (stripe.isShutdown()) throw new RejectedExecutionException("The cost updates are shut down");
+        try {
+            stripe.getQueue().put(task);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RejectedExecutionException("Interrupted while waiting to queue a cost update", e);
+        }
+    }
+
+    private int stripeOf(final Long key) {
+        return Math.floorMod(key.hashCode(), this.stripes.length);
+    }
+
+    private void apply(final Long key) {
+        // The update is only forgotten once applied, so that the reads see it until then. An update
+        // enqueued meanwhile replaces it without scheduling a task, so it is applied here as well.
+        // It's applied in place, as queueing a new task from the stripe itself could wait forever for room.
+        var update = this.pendingUpdates.get(key);
+        while (update != null) {
+            try {
+                final var value = update.get();
+                if (value == null) {
+                    log.debug("Removing item from cache - thread: " + Thread.currentThread().getName());
+                    this.cache.invalidate(key);
+                } else {
+                    log.debug("Updating cache - thread: " + Thread.currentThread().getName());
+                    this.cache.put(key, value);
+                }
+            } catch (RuntimeException e) {
+                // The cost is recalculated on the next read
+                log.warn("Could not update the cost of device {}", key, e);
+                this.cache.invalidate(key);
+            }
+            if (this.pendingUpdates.remove(key, update)) return;
+            update = this.pendingUpdates.get(key);
+        }
     }
 }
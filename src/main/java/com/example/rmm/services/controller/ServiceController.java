@@ -3,21 +3,34 @@ package com.example.rmm.services.controller;
 import com.example.rmm.services.controller.dtos.FullServiceData;
 import com.example.rmm.services.controller.dtos.SaveServiceRequest;
 import com.example.rmm.services.controller.dtos.SaveServiceResponse;
+import com.example.rmm.services.controller.dtos.UpdateServicePriceRequest;
 import com.example.rmm.services.service.ServiceService;
 import jakarta.validation.Valid;
-import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.CacheControl;
+import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.WebRequest;
 
+import java.time.Duration;
 import java.util.List;
 
 @Slf4j
 @RestController
-@RequiredArgsConstructor
 @RequestMapping("/services")
 public class ServiceController {
 
     private final ServiceService serviceService;
+    private final CacheControl cacheControl;
+
+    public ServiceController(
+            final ServiceService serviceService,
+            @Value("${rmm.http.services-max-age:30s}") final Duration maxAge
+    ) {
+        this.serviceService = serviceService;
+        this.cacheControl = CacheControl.maxAge(maxAge).mustRevalidate();
+    }
 
     @PostMapping
     public SaveServiceResponse save(@Valid @RequestBody final SaveServiceRequest request) {
@@ -25,15 +38,26 @@ public class ServiceController {
         return this.serviceService.save(request);
     }
 
+    @PutMapping("/{id}")
+    public void updatePrice(@PathVariable final Long id, @Valid @RequestBody final UpdateServicePriceRequest request) {
+        log.info("Update service price - request received: {}, {}", id, request);
+        this.serviceService.updatePrice(id, request);
+    }
+
     @DeleteMapping("/{id}")
     public void delete(@PathVariable final Long id) {
         log.info("Delete service - request received: {}", id);
         this.serviceService.delete(id);
     }
 
+    /**
+     * Returns all the services, or 304 Not Modified when the client already has them.
+     * Clients can keep them up to {@code rmm.http.services-max-age} before checking again.
+     */
     @GetMapping
-    public List<FullServiceData> findAll() {
+    public ResponseEntity<List<FullServiceData>> findAll(final WebRequest request) {
         log.info("Find all services with full data - request received");
-        return this.serviceService.findAll();
+        if (request.checkNotModified(this.serviceService.findETag())) return null;
+        return ResponseEntity.ok().cacheControl(this.cacheControl).body(this.serviceService.findAll());
     }
 }
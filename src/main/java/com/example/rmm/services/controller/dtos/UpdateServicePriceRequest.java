@@ -0,0 +1,10 @@
+package com.example.rmm.services.controller.dtos;
+
+import jakarta.validation.constraints.NotNull;
+import jakarta.validation.constraints.Positive;
+
+public record UpdateServicePriceRequest(
+        @NotNull(message = "The Price is required")
+        @Positive(message = "The Price should be greater than 0")
+        Float price
+) {}
@@ -1,12 +1,18 @@
 package com.example.rmm.services.repository;
 
 import com.example.rmm.common.persistence.BaseEntity;
+import jakarta.persistence.Cacheable;
 import jakarta.persistence.Entity;
 import lombok.Getter;
 import lombok.NoArgsConstructor;
 import lombok.Setter;
+import org.hibernate.annotations.Cache;
+
+import static org.hibernate.annotations.CacheConcurrencyStrategy.READ_WRITE;
 
 @Entity
+@Cacheable
+@Cache(usage = READ_WRITE)
 @Setter
 @Getter
 @NoArgsConstructor
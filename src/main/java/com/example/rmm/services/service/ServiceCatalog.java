@@ -0,0 +1,176 @@
+package com.example.rmm.services.service;
+
+import com.example.rmm.common.exceptions.NotFoundException;
+import com.example.rmm.services.repository.Service;
+import com.example.rmm.services.repository.ServiceRepository;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.core.annotation.Order;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.event.TransactionalEventListener;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static org.springframework.core.Ordered.HIGHEST_PRECEDENCE;
+
+/**
+ * In-memory, read-mostly copy of the {@code service} table, so that saving and modifying
+ * devices never query the services.
+ * <p>
+ * The catalog is an immutable snapshot, replaced as a whole (copy-on-write) once a service
+ * is saved or deleted. Lookups are a binary search over the sorted IDs, without boxing.
+ * <p>
+ * The returned services are detached copies shared by all the callers: they can be linked
+ * to devices, but must never be modified.
+ */
+@Slf4j
+@Component
+@RequiredArgsConstructor
+public class ServiceCatalog {
+
+    private final ServiceRepository serviceRepository;
+    // Not a monitor, as a virtual thread querying the services within synchronized would pin its carrier
+    private final Lock refreshes = new ReentrantLock();
+
+    private volatile Snapshot snapshot;
+
+    /**
+     * @return the services with the given IDs, ignoring the IDs not found.
+     */
+    public List<Service> findAllById(final Iterable<Long> ids) {
+        final var snapshot = snapshot();
+        final var services = new ArrayList<Service>();
+        for (final var id : ids) {
+            final var service = snapshot.find(id);
+            if (service != null) services.add(service);
+        }
+        return services;
+    }
+
+    /**
+     * @return the services with the given IDs, ignoring the IDs not found.
+     * @throws NotFoundException if none of the services is found.
+     */
+    public List<Service> getAllById(final Iterable<Long> ids) {
+        final var services = findAllById(ids);
+        if (services.isEmpty()) throw new NotFoundException("Service(s) with the given ID(s) not found");
+        return services;
+    }
+
+    /**
+     * @return all the services, sorted by ID.
+     */
+    public List<Service> findAll() {
+        return List.of(snapshot().services());
+    }
+
+    public Optional<Service> findById(final Long id) {
+        return Optional.ofNullable(snapshot().find(id));
+    }
+
+    /**
+     * @return a number incremented every time the catalog is refreshed, so that
+     * anything derived from it can tell whether it is outdated.
+     */
+    public long version() {
+        return snapshot().version();
+    }
+
+    /**
+     * @return a strong entity tag of the catalog, a hash of the services IDs and versions.
+     */
+    public String eTag() {
+        return snapshot().eTag();
+    }
+
+    /**
+     * Loads the catalog again from the database once a service change is committed,
+     * or right away when the change was made outside a transaction. Runs before the
+     * other listeners, so they compute the costs with the new catalog.
+     */
+    @Order(HIGHEST_PRECEDENCE)
+    @TransactionalEventListener(fallbackExecution = true)
+    public void onServiceChanged(final ServiceChangedEvent event) {
+        log.debug("Service {} changed - refreshing the services catalog", event.serviceId());
+        refresh();
+    }
+
+    @Order(HIGHEST_PRECEDENCE)
+    @TransactionalEventListener
+    public void onServicePriceChanged(final ServicePriceChangedEvent event) {
+        log.debug("Service {} price changed - refreshing the services catalog", event.serviceId());
+        refresh();
+    }
+
+    public void refresh() {
+        this.refreshes.lock();
+        try {
+            // Copy the entities, so the catalog never shares an instance with a persistence context
+            final var services = this.serviceRepository.findAll()
+                                                       .stream()
+                                                       .map(ServiceCatalog::copy)
+                                                       .sorted(Comparator.comparing(Service::getId))
+                                                       .toArray(Service[]::new);
+            final var ids = Arrays.stream(services).mapToLong(Service::getId).toArray();
+            final var version = this.snapshot == null ? 1 : this.snapshot.version() + 1;
+            this.snapshot = new Snapshot(version, ids, services, eTag(services));
+            log.debug("Services catalog refreshed with {} service(s)", ids.length);
+        } finally {
+            this.refreshes.unlock();
+        }
+    }
+
+    private Snapshot snapshot() {
+        // Loaded on first use, once the database is initialized
+        var current = this.snapshot;
+        if (current == null) {
+            this.refreshes.lock();
+            try {
+                if (this.snapshot == null) refresh();
+                current = this.snapshot;
+            } finally {
+                this.refreshes.unlock();
+            }
+        }
+        return current;
+    }
+
+    private static String eTag(final Service[] services) {
+        // Versions are incremented by every update, so any change to the services changes the hash
+        long hash = services.length;
+        for (final var service : services) {
+            hash = 31 * hash + service.getId();
+            hash = 31 * hash + service.getVersion();
+        }
+        return Long.toHexString(hash);
+    }
+
+    private static Service copy(final Service service) {
+        final var copy = new Service(service.getName(), service.getPrice());
+        copy.setId(service.getId());
+        // A versioned entity without version would be taken as transient when linked to a device
+        copy.setVersion(service.getVersion());
+        return copy;
+    }
+
+    /**
+     * @param version  number of times the catalog was loaded.
+     * @param ids      IDs of the services, sorted.
+     * @param services services at the same index as their ID.
+     * @param eTag     entity tag of the services.
+     */
+    private record Snapshot(long version, long[] ids, Service[] services, String eTag) {
+
+        Service find(final Long id) {
+            if (id == null) return null;
+            final var index = Arrays.binarySearch(this.ids, id);
+            return index < 0 ? null : this.services[index];
+        }
+    }
+}
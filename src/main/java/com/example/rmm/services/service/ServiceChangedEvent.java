@@ -0,0 +1,12 @@
+package com.example.rmm.services.service;
+
+import java.util.List;
+
+/**
+ * Published when a service is created, or modified in a way that affects the cost of
+ * the devices subscribed to it.
+ *
+ * @param serviceId  ID of the modified service.
+ * @param devicesIds IDs of the devices that were subscribed to the service.
+ */
+public record ServiceChangedEvent(Long serviceId, List<Long> devicesIds) {}
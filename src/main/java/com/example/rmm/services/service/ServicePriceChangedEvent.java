@@ -0,0 +1,9 @@
+package com.example.rmm.services.service;
+
+/**
+ * Published when the price of a service changes, so that the costs derived from it are
+ * adjusted once the change is committed.
+ *
+ * @param serviceId ID of the repriced service.
+ */
+public record ServicePriceChangedEvent(Long serviceId) {}
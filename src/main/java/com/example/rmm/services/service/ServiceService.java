@@ -1,12 +1,16 @@
 package com.example.rmm.services.service;
 
+import com.example.rmm.common.exceptions.NotFoundException;
 import com.example.rmm.services.controller.dtos.FullServiceData;
 import com.example.rmm.services.controller.dtos.SaveServiceRequest;
 import com.example.rmm.services.controller.dtos.SaveServiceResponse;
+import com.example.rmm.services.controller.dtos.UpdateServicePriceRequest;
 import com.example.rmm.services.repository.ServiceRepository;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.context.ApplicationEventPublisher;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
 
 import java.util.List;
 
@@ -16,21 +20,53 @@ import java.util.List;
 public class ServiceService {
 
     private final ServiceRepository serviceRepository;
+    private final ServiceCatalog serviceCatalog;
+    private final ApplicationEventPublisher eventPublisher;
 
     public SaveServiceResponse save(final SaveServiceRequest request) {
         final var service = ServiceMapper.saveServiceRequestToService(request);
         final var savedService = this.serviceRepository.save(service);
+
+        // Let the listeners know about the new service, no device is subscribed to it yet
+        this.eventPublisher.publishEvent(new ServiceChangedEvent(savedService.getId(), List.of()));
         return ServiceMapper.serviceToSaveServiceResponse(savedService);
     }
 
     public List<FullServiceData> findAll() {
-        return this.serviceRepository.findAll()
-                                     .stream()
-                                     .map(ServiceMapper::serviceToFullServiceData)
-                                     .toList();
+        return this.serviceCatalog.findAll()
+                                  .stream()
+                                  .map(ServiceMapper::serviceToFullServiceData)
+                                  .toList();
+    }
+
+    /**
+     * @return the entity tag of the services returned by {@link #findAll()}.
+     */
+    public String findETag() {
+        return this.serviceCatalog.eTag();
     }
 
+    /**
+     * Changes the price of the service. The cached costs of its subscribers are updated once committed,
+     * without the request waiting for them. The customers totals are computed with the current prices,
+     * so they need no update.
+     */
+    @Transactional
+    public void updatePrice(final Long id, final UpdateServicePriceRequest request) {
+        final var service = this.serviceRepository.findById(id).orElseThrow(() -> new NotFoundException("Service not found"));
+        service.setPrice(request.price());
+
+        // Let the listeners adjust whatever was derived from the price once the transaction commits
+        this.eventPublisher.publishEvent(new ServicePriceChangedEvent(id));
+    }
+
+    @Transactional
     public void delete(final Long id) {
+        // Collect the subscribed devices before the links are removed by the ON DELETE CASCADE
+        final var devicesIds = this.serviceRepository.findSubscribedDevicesIds(id);
         this.serviceRepository.deleteById(id);
+
+        // Let the listeners invalidate whatever was derived from the service once the transaction commits
+        this.eventPublisher.publishEvent(new ServiceChangedEvent(id, devicesIds));
     }
 }
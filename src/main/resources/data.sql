@@ -1,5 +1,5 @@
-INSERT INTO service(name, price) VALUES('Device of any type', 4);
-INSERT INTO service(name, price) VALUES('Antivirus for Windows', 5);
-INSERT INTO service(name, price) VALUES('Antivirus for Mac', 7);
-INSERT INTO service(name, price) VALUES('Backup', 3);
-INSERT INTO service(name, price) VALUES('Screen share', 1);
\ No newline at end of file
+INSERT INTO service(id, name, price) VALUES(1, 'Device of any type', 4);
+INSERT INTO service(id, name, price) VALUES(2, 'Antivirus for Windows', 5);
+INSERT INTO service(id, name, price) VALUES(3, 'Antivirus for Mac', 7);
+INSERT INTO service(id, name, price) VALUES(4, 'Backup', 3);
+INSERT INTO service(id, name, price) VALUES(5, 'Screen share', 1);
\ No newline at end of file
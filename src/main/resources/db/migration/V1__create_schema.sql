@@ -0,0 +1,33 @@
+-- The increment must match the allocation size of the ID generator in BaseEntity
+CREATE SEQUENCE device_seq START WITH 1 INCREMENT BY 50;
+CREATE SEQUENCE service_seq START WITH 6 INCREMENT BY 50;
+
+CREATE TABLE device (
+    id bigint NOT NULL,
+    customer_id bigint,
+    system_name varchar(255),
+    type varchar(255),
+    version bigint DEFAULT 0 NOT NULL,
+    PRIMARY KEY (id),
+    UNIQUE (system_name, type, customer_id)
+);
+
+CREATE TABLE service (
+    id bigint NOT NULL,
+    name varchar(255) UNIQUE,
+    price float(24),
+    version bigint DEFAULT 0 NOT NULL,
+    PRIMARY KEY (id)
+);
+
+CREATE TABLE device_service (
+    device_id bigint NOT NULL,
+    service_id bigint NOT NULL,
+    PRIMARY KEY (device_id, service_id),
+    FOREIGN KEY (service_id) REFERENCES service(id) ON DELETE CASCADE,
+    FOREIGN KEY (device_id) REFERENCES device(id) ON DELETE CASCADE
+);
+
+-- The customer devices and the service subscribers are looked up without the leading column of any key
+CREATE INDEX device_customer_id_idx ON device (customer_id);
+CREATE INDEX device_service_service_id_idx ON device_service (service_id);
@@ -0,0 +1,5 @@
+INSERT INTO service(id, name, price) VALUES(1, 'Device of any type', 4);
+INSERT INTO service(id, name, price) VALUES(2, 'Antivirus for Windows', 5);
+INSERT INTO service(id, name, price) VALUES(3, 'Antivirus for Mac', 7);
+INSERT INTO service(id, name, price) VALUES(4, 'Backup', 3);
+INSERT INTO service(id, name, price) VALUES(5, 'Screen share', 1);
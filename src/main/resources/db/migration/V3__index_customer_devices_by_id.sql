@@ -0,0 +1,3 @@
+-- The ID is included, so a customer devices page is read in order from the index
+DROP INDEX device_customer_id_idx;
+CREATE INDEX device_customer_id_idx ON device (customer_id, id);
@@ -0,0 +1,2 @@
+-- Moved on by every device write, the device cost snapshot is only loaded while it has not moved
+CREATE SEQUENCE device_change_seq START WITH 1;
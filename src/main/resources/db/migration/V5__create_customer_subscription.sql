@@ -0,0 +1,16 @@
+-- Number of devices of each customer subscribed to each service, updated along with the devices services
+CREATE TABLE customer_subscription (
+    customer_id bigint NOT NULL,
+    service_id bigint NOT NULL,
+    devices bigint NOT NULL,
+    PRIMARY KEY (customer_id, service_id),
+    FOREIGN KEY (service_id) REFERENCES service(id) ON DELETE CASCADE
+);
+
+CREATE INDEX customer_subscription_service_id_idx ON customer_subscription (service_id);
+
+INSERT INTO customer_subscription (customer_id, service_id, devices)
+SELECT d.customer_id, ds.service_id, COUNT(*) FROM device_service ds
+JOIN device d ON d.id = ds.device_id
+WHERE d.customer_id IS NOT NULL
+GROUP BY d.customer_id, ds.service_id;
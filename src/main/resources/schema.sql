@@ -1,20 +1,32 @@
+DROP TABLE IF EXISTS customer_subscription;
 DROP TABLE IF EXISTS device_service;
 DROP TABLE IF EXISTS device;
 DROP TABLE IF EXISTS service;
+DROP SEQUENCE IF EXISTS device_seq;
+DROP SEQUENCE IF EXISTS service_seq;
+DROP SEQUENCE IF EXISTS device_change_seq;
+
+-- The increment must match the allocation size of the ID generator in BaseEntity
+CREATE SEQUENCE device_seq START WITH 1 INCREMENT BY 50;
+CREATE SEQUENCE service_seq START WITH 6 INCREMENT BY 50;
+-- Moved on by every device write, the device cost snapshot is only loaded while it has not moved
+CREATE SEQUENCE device_change_seq START WITH 1;
 
 CREATE TABLE device (
-    id bigint GENERATED BY DEFAULT AS IDENTITY,
+    id bigint NOT NULL,
     customer_id bigint,
     system_name varchar(255),
     type varchar(255),
+    version bigint DEFAULT 0 NOT NULL,
     PRIMARY KEY (id),
     UNIQUE (system_name, type, customer_id)
 );
 
 CREATE TABLE service (
-    id bigint GENERATED BY DEFAULT AS IDENTITY,
+    id bigint NOT NULL,
     name varchar(255) UNIQUE,
     price float(24),
+    version bigint DEFAULT 0 NOT NULL,
     PRIMARY KEY (id)
 );
 
@@ -24,4 +36,19 @@ CREATE TABLE device_service (
     PRIMARY KEY (device_id, service_id),
     FOREIGN KEY (service_id) REFERENCES service(id) ON DELETE CASCADE,
     FOREIGN KEY (device_id) REFERENCES device(id) ON DELETE CASCADE
-);
\ No newline at end of file
+);
+
+-- Number of devices of each customer subscribed to each service, updated along with the devices services
+CREATE TABLE customer_subscription (
+    customer_id bigint NOT NULL,
+    service_id bigint NOT NULL,
+    devices bigint NOT NULL,
+    PRIMARY KEY (customer_id, service_id),
+    FOREIGN KEY (service_id) REFERENCES service(id) ON DELETE CASCADE
+);
+
+-- The customer devices and the service subscribers are looked up without the leading column of any key
+-- The ID is included, so a customer devices page is read in order from the index
+CREATE INDEX device_customer_id_idx ON device (customer_id, id);
+CREATE INDEX device_service_service_id_idx ON device_service (service_id);
+CREATE INDEX customer_subscription_service_id_idx ON customer_subscription (service_id);
@@ -0,0 +1,49 @@
+package com.example.rmm.common.persistence;
+
+import com.example.rmm.devices.controller.dtos.SaveDeviceRequest;
+import com.example.rmm.devices.controller.dtos.Type;
+import io.restassured.RestAssured;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestInstance;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.web.server.LocalServerPort;
+import org.springframework.test.context.ActiveProfiles;
+
+import static io.restassured.RestAssured.given;
+import static io.restassured.RestAssured.when;
+import static io.restassured.http.ContentType.JSON;
+import static org.hamcrest.Matchers.equalTo;
+import static org.junit.jupiter.api.TestInstance.Lifecycle.PER_CLASS;
+import static org.springframework.boot.test.context.SpringBootTest.WebEnvironment.RANDOM_PORT;
+
+/**
+ * Runs the application with the prod profile, on an in-memory database created by the migrations.
+ */
+@TestInstance(PER_CLASS)
+@ActiveProfiles("prod")
+@SpringBootTest(webEnvironment = RANDOM_PORT, properties = "spring.datasource.url=jdbc:h2:mem:migrations")
+class MigrationsTest {
+
+    public static final int OK = 200;
+
+    @LocalServerPort
+    private int port;
+
+    @BeforeAll
+    public void beforeAll() {
+        RestAssured.port = port;
+    }
+
+    @Test
+    void shouldCreateTheSchemaAndTheBaseServices() {
+        // The services are inserted by the migrations
+        when().get("/services").then().statusCode(OK).body("$.size()", equalTo(5));
+
+        // A device is saved along with its base service
+        final int id = given().contentType(JSON).body(new SaveDeviceRequest("Server1", Type.WINDOWS_SERVER, 1L))
+                              .post("/devices").then().statusCode(OK).extract().path("id");
+        when().get("/devices/{id}", id).then().statusCode(OK).body("servicesCost", equalTo(4f));
+        when().get("/customers/{id}/cost", 1).then().statusCode(OK).body("servicesCost", equalTo(4f));
+    }
+}
@@ -0,0 +1,186 @@
+package com.example.rmm.common.persistence;
+
+import com.example.rmm.devices.controller.dtos.ModifyDeviceServicesRequest;
+import com.example.rmm.devices.controller.dtos.ModifyDeviceServicesRequest.Action;
+import com.example.rmm.devices.controller.dtos.ModifyDevicesServicesRequest;
+import com.example.rmm.devices.controller.dtos.SaveDeviceRequest;
+import com.example.rmm.devices.controller.dtos.SaveDevicesBatchRequest;
+import com.example.rmm.devices.controller.dtos.Type;
+import com.example.rmm.devices.service.DeviceCostEngine;
+import com.example.rmm.devices.service.DeviceCostWarmUp;
+import com.example.rmm.devices.service.DeviceSubscriptionIndex;
+import com.example.rmm.devices.service.LocalCache;
+import io.restassured.RestAssured;
+import org.junit.jupiter.api.DynamicTest;
+import org.junit.jupiter.api.TestFactory;
+import org.junit.jupiter.api.TestInstance;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.Arguments;
+import org.junit.jupiter.params.provider.MethodSource;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.web.server.LocalServerPort;
+import org.springframework.context.annotation.Import;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import java.sql.Types;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+import static io.restassured.RestAssured.given;
+import static io.restassured.RestAssured.when;
+import static io.restassured.http.ContentType.JSON;
+import static java.util.stream.Collectors.toCollection;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.DynamicTest.dynamicTest;
+import static org.junit.jupiter.api.TestInstance.Lifecycle.PER_CLASS;
+import static org.junit.jupiter.params.provider.Arguments.arguments;
+import static org.springframework.boot.test.context.SpringBootTest.WebEnvironment.RANDOM_PORT;
+
+/**
+ * Verifies that the statements on the device tables are backed by an index, with their plans.
+ * <p>
+ * The statements are the ones actually executed, recorded by {@link SqlStatementsRecorder} while
+ * the endpoints and the cost engine run, so a new query is checked as soon as one of these paths
+ * runs it. The lookups the database runs by itself, for the ON DELETE CASCADE, are checked from their SQL.
+ */
+@TestInstance(PER_CLASS)
+@SpringBootTest(webEnvironment = RANDOM_PORT)
+@Import(SqlStatementsRecorder.class)
+class QueryPlansTest {
+
+    private static final int OK = 200;
+    private static final long CUSTOMER_ID = 1L;
+    private static final long BACKUP = 4L;
+    private static final String TABLE_SCAN = ".tableScan";
+    // The tables growing with the fleet, the services catalog is read as a whole on purpose
+    private static final Pattern DEVICE_TABLES = Pattern.compile("(?i)\\b(device|device_service|customer_subscription)\\b");
+
+    @LocalServerPort
+    private int port;
+
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    @Autowired
+    private SqlStatementsRecorder sqlStatementsRecorder;
+
+    @Autowired
+    private LocalCache cache;
+
+    @Autowired
+    private DeviceSubscriptionIndex subscriptionIndex;
+
+    @Autowired
+    private DeviceCostEngine costEngine;
+
+    @Autowired
+    private DeviceCostWarmUp costWarmUp;
+
+    static Stream<Arguments> cascades() {
+        return Stream.of(
+                arguments(
+                        "The devices services ON DELETE CASCADE of a service",
+                        "SELECT device_id FROM device_service WHERE service_id = 1",
+                        "DEVICE_SERVICE_SERVICE_ID_IDX"
+                ),
+                arguments(
+                        "The customers subscriptions ON DELETE CASCADE of a service",
+                        "SELECT customer_id FROM customer_subscription WHERE service_id = 1",
+                        "CUSTOMER_SUBSCRIPTION_SERVICE_ID_IDX"
+                ),
+                arguments(
+                        "The devices services ON DELETE CASCADE of a device",
+                        "SELECT service_id FROM device_service WHERE device_id = 1",
+                        "PRIMARY_KEY"
+                )
+        );
+    }
+
+    @ParameterizedTest(name = "{0}")
+    @MethodSource("cascades")
+    void shouldUseAnIndex(final String cascade, final String sql, final String index) {
+        assertThat(explain(sql)).as(cascade + " plan").doesNotContain(TABLE_SCAN).contains(index);
+    }
+
+    @TestFactory
+    Stream<DynamicTest> shouldRunTheExecutedStatementsWithAnIndex() throws Exception {
+        final var statements = executedStatements();
+        assertThat(statements).as("Statements executed on the device tables").isNotEmpty();
+        return statements.stream()
+                         .map(sql -> dynamicTest(sql, () -> assertThat(explain(sql)).as(sql + " plan").doesNotContain(TABLE_SCAN)));
+    }
+
+    /**
+     * Runs the device paths of a customer and records their statements on the device tables.
+     */
+    private Set<String> executedStatements() throws Exception {
+        RestAssured.port = port;
+        sqlStatementsRecorder.clear();
+        try {
+            // Save devices one at a time and in a batch, then add and remove services one device at a time and in bulk
+            final int server1Id = saveDevice(new SaveDeviceRequest("Server1", Type.WINDOWS_SERVER, CUSTOMER_ID));
+            final int server2Id = saveDevice(new SaveDeviceRequest("Server2", Type.WINDOWS_SERVER, CUSTOMER_ID));
+            given().contentType(JSON).body(new SaveDevicesBatchRequest(List.of(new SaveDeviceRequest("Mac1", Type.MAC, CUSTOMER_ID))))
+                   .post("/devices/batch").then().statusCode(OK);
+            given().contentType(JSON).body(new ModifyDeviceServicesRequest(Set.of(BACKUP), Action.ADD))
+                   .post("/devices/{id}/services", server1Id).then().statusCode(OK);
+            given().contentType(JSON).body(new ModifyDevicesServicesRequest(CUSTOMER_ID, null, null, Set.of(BACKUP), Action.ADD))
+                   .post("/devices/services").then().statusCode(OK);
+            given().contentType(JSON).body(new ModifyDevicesServicesRequest(CUSTOMER_ID, null, null, Set.of(BACKUP), Action.REMOVE))
+                   .post("/devices/services").then().statusCode(OK);
+            given().contentType(JSON).body(Map.of("price", 5.0f)).put("/services/{id}", BACKUP).then().statusCode(OK);
+            given().contentType(JSON).body(Map.of("price", 3.0f)).put("/services/{id}", BACKUP).then().statusCode(OK);
+
+            // Read the devices and the customer cost
+            when().get("/devices/{id}", server1Id).then().statusCode(OK);
+            given().queryParam("customerId", CUSTOMER_ID).get("/devices").then().statusCode(OK);
+            given().queryParam("customerId", CUSTOMER_ID).get("/devices/stream").then().statusCode(OK);
+            when().get("/customers/{id}/cost", CUSTOMER_ID).then().statusCode(OK);
+
+            // Compute the costs of a device missing from the subscriptions index, then warm the cache up
+            subscriptionIndex.remove((long) server2Id);
+            when().get("/devices/{id}", server2Id).then().statusCode(OK);
+            costEngine.computeCost((long) server2Id);
+            costEngine.computeCosts(List.of((long) server2Id));
+            costEngine.computeCustomerCost(CUSTOMER_ID);
+            cache.clear();
+            costWarmUp.warmUp();
+
+            // Delete a device
+            when().delete("/devices/{id}", server2Id).then().statusCode(OK);
+
+            return sqlStatementsRecorder.statements()
+                                        .stream()
+                                        .filter(sql -> DEVICE_TABLES.matcher(sql).find())
+                                        .collect(toCollection(LinkedHashSet::new));
+        } finally {
+            jdbcTemplate.execute("DELETE FROM device");
+            jdbcTemplate.execute("DELETE FROM customer_subscription");
+            cache.clear();
+            subscriptionIndex.clear();
+        }
+    }
+
+    /**
+     * @return the plan of the statement, its parameters bound to null as they do not change the plan.
+     */
+    private String explain(final String sql) {
+        return jdbcTemplate.query(
+                "EXPLAIN " + sql,
+                statement -> {
+                    final int parameters = statement.getParameterMetaData().getParameterCount();
+                    for (int i = 1; i <= parameters; i++) statement.setNull(i, Types.NULL);
+                },
+                resultSet -> resultSet.next() ? resultSet.getString(1) : null
+        );
+    }
+
+    private int saveDevice(final SaveDeviceRequest request) {
+        return given().contentType(JSON).body(request).post("/devices").then().statusCode(OK).extract().path("id");
+    }
+}
@@ -0,0 +1,89 @@
+package com.example.rmm.common.persistence;
+
+import com.example.rmm.devices.controller.dtos.ModifyDeviceServicesRequest.Action;
+import com.example.rmm.devices.controller.dtos.ModifyDevicesServicesRequest;
+import com.example.rmm.devices.controller.dtos.SaveDeviceRequest;
+import com.example.rmm.devices.controller.dtos.Type;
+import com.example.rmm.devices.repository.DeviceRepository;
+import io.restassured.RestAssured;
+import jakarta.persistence.EntityManagerFactory;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestInstance;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.web.server.LocalServerPort;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.util.Set;
+
+import static io.restassured.RestAssured.given;
+import static io.restassured.RestAssured.when;
+import static io.restassured.http.ContentType.JSON;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.junit.jupiter.api.TestInstance.Lifecycle.PER_CLASS;
+import static org.springframework.boot.test.context.SpringBootTest.WebEnvironment.RANDOM_PORT;
+
+@TestInstance(PER_CLASS)
+@ActiveProfiles("second-level-cache")
+@SpringBootTest(webEnvironment = RANDOM_PORT, properties = "spring.datasource.url=jdbc:h2:mem:second-level-cache")
+class SecondLevelCacheTest {
+
+    public static final int OK = 200;
+    public static final long BACKUP = 4;
+
+    @LocalServerPort
+    private int port;
+
+    @Autowired
+    private EntityManagerFactory entityManagerFactory;
+
+    @Autowired
+    private DeviceRepository deviceRepository;
+
+    @Autowired
+    private TransactionTemplate transactionTemplate;
+
+    private SqlStatementCounter sqlStatements;
+
+    @BeforeAll
+    public void beforeAll() {
+        RestAssured.port = port;
+        sqlStatements = new SqlStatementCounter(entityManagerFactory);
+    }
+
+    @Test
+    void shouldFindTheDeviceWithoutStatementsOnceCached() {
+        // Save and find the device, so it gets cached
+        final int id = given().contentType(JSON).body(new SaveDeviceRequest("Server1", Type.WINDOWS_SERVER, 1L))
+                              .post("/devices").then().statusCode(OK).extract().path("id");
+        when().get("/devices/{id}", id).then().statusCode(OK);
+        sqlStatements.reset();
+
+        // The device is read from the second-level cache
+        when().get("/devices/{id}", id).then().statusCode(OK).body("systemName", equalTo("Server1"));
+        sqlStatements.assertStatementCount(0);
+    }
+
+    @Test
+    void shouldEvictTheDevicesServicesModifiedInBulk() {
+        // Save the device and cache its services
+        final int id = given().contentType(JSON).body(new SaveDeviceRequest("Server2", Type.WINDOWS_SERVER, 2L))
+                              .post("/devices").then().statusCode(OK).extract().path("id");
+        assertThat(countServices(id)).isEqualTo(1);
+
+        // Add the backup with a bulk modification, done with JDBC
+        given().contentType(JSON)
+               .body(new ModifyDevicesServicesRequest(2L, null, null, Set.of(BACKUP), Action.ADD))
+               .post("/devices/services").then().statusCode(OK);
+
+        // The cached services were evicted, so the backup is loaded
+        assertThat(countServices(id)).isEqualTo(2);
+    }
+
+    private int countServices(final long id) {
+        return transactionTemplate.execute(status -> deviceRepository.findById(id).orElseThrow().getServices().size());
+    }
+}
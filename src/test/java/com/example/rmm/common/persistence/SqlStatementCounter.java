@@ -0,0 +1,56 @@
+package com.example.rmm.common.persistence;
+
+import jakarta.persistence.EntityManagerFactory;
+import org.hibernate.SessionFactory;
+import org.hibernate.stat.Statistics;
+
+import java.util.List;
+import java.util.regex.Pattern;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Counts the SQL statements executed through the DataSource, as recorded by {@link SqlStatementsRecorder},
+ * so that tests can pin down the number of round trips to the database made by each endpoint.
+ * <p>
+ * The IDs are reserved from their sequence a block at a time, so whether a write reserves a block
+ * depends on the writes before it: these statements are left out of the count.
+ */
+public class SqlStatementCounter {
+
+    private static final Pattern ID_RESERVATION = Pattern.compile("(?i)next value for (device|service)_seq\\b");
+
+    private final Statistics statistics;
+    private final SqlStatementsRecorder recorder;
+
+    public SqlStatementCounter(final EntityManagerFactory entityManagerFactory, final SqlStatementsRecorder recorder) {
+        this.statistics = entityManagerFactory.unwrap(SessionFactory.class).getStatistics();
+        this.statistics.setStatisticsEnabled(true);
+        this.recorder = recorder;
+    }
+
+    public void reset() {
+        this.statistics.clear();
+        this.recorder.clear();
+    }
+
+    /**
+     * @return the statements executed since the last reset, except the IDs reservations.
+     */
+    public List<String> statements() {
+        return this.recorder.statements().stream().filter(sql -> !ID_RESERVATION.matcher(sql).find()).toList();
+    }
+
+    public void assertStatementCount(final long expected) {
+        final var statements = statements();
+        assertThat(statements.size())
+                .as("Number of SQL statements in %s", statements)
+                .isEqualTo(expected);
+    }
+
+    public void assertEntityLoadCount(final long expected) {
+        assertThat(this.statistics.getEntityLoadCount())
+                .as("Number of entities loaded")
+                .isEqualTo(expected);
+    }
+}
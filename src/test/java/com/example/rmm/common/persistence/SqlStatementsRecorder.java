@@ -0,0 +1,100 @@
+package com.example.rmm.common.persistence;
+
+import org.springframework.beans.factory.config.BeanPostProcessor;
+
+import javax.sql.DataSource;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.Savepoint;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Wraps the DataSource to record the SQL of every statement executed through it, by Hibernate and
+ * by JdbcTemplate alike, a JDBC batch being recorded once. Setting, releasing and rolling back to
+ * a savepoint are recorded too, as each one is a round trip to most databases.
+ * <p>
+ * Imported by the tests that pin down the statements of an endpoint.
+ */
+public class SqlStatementsRecorder implements BeanPostProcessor {
+
+    private final Queue<String> statements = new ConcurrentLinkedQueue<>();
+
+    @Override
+    public Object postProcessAfterInitialization(final Object bean, final String beanName) {
+        if (!(bean instanceof DataSource dataSource)) return bean;
+        return proxy(DataSource.class, dataSource, (method, args) -> {
+            final var result = invoke(dataSource, method, args);
+            return result instanceof Connection connection ? connection(connection) : result;
+        });
+    }
+
+    /**
+     * @return the statements executed since the last clear, in order.
+     */
+    public List<String> statements() {
+        return List.copyOf(this.statements);
+    }
+
+    public void clear() {
+        this.statements.clear();
+    }
+
+    private Connection connection(final Connection connection) {
+        return proxy(Connection.class, connection, (method, args) -> {
+            switch (method.getName()) {
+                case "setSavepoint" -> this.statements.add("SAVEPOINT");
+                case "releaseSavepoint" -> this.statements.add("RELEASE SAVEPOINT");
+                case "rollback" -> {
+                    if (args != null && args.length == 1 && args[0] instanceof Savepoint) this.statements.add("ROLLBACK TO SAVEPOINT");
+                }
+            }
+            final var result = invoke(connection, method, args);
+            return switch (method.getName()) {
+                // The SQL of a prepared statement is only known when it is prepared
+                case "prepareStatement", "prepareCall" -> statement(method.getReturnType(), result, (String) args[0]);
+                case "createStatement" -> statement(method.getReturnType(), result, null);
+                default -> result;
+            };
+        });
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T> T statement(final Class<T> type, final Object statement, final String preparedSql) {
+        return proxy(type, (T) statement, (method, args) -> {
+            if (method.getName().startsWith("execute")) {
+                final var sql = args != null && args.length > 0 && args[0] instanceof String executed ? executed : preparedSql;
+                this.statements.add(sql != null ? sql : "BATCH");
+            }
+            return invoke(statement, method, args);
+        });
+    }
+
+    private static <T> T proxy(final Class<T> type, final T target, final Interceptor interceptor) {
+        final InvocationHandler handler = (proxy, method, args) -> switch (method.getName()) {
+            // The proxy is the resource the transactions are bound to, so it must only be equal to itself
+            case "equals" -> proxy == args[0];
+            case "hashCode" -> System.identityHashCode(proxy);
+            case "toString" -> "Recorded " + target;
+            default -> interceptor.invoke(method, args);
+        };
+        return type.cast(Proxy.newProxyInstance(SqlStatementsRecorder.class.getClassLoader(), new Class<?>[]{type}, handler));
+    }
+
+    private static Object invoke(final Object target, final Method method, final Object[] args) throws Throwable {
+        try {
+            return method.invoke(target, args);
+        } catch (final InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+
+    @FunctionalInterface
+    private interface Interceptor {
+        Object invoke(Method method, Object[] args) throws Throwable;
+    }
+}
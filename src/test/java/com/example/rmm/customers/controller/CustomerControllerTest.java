@@ -0,0 +1,109 @@
+package com.example.rmm.customers.controller;
+
+import com.example.rmm.devices.controller.dtos.ModifyDeviceServicesRequest;
+import com.example.rmm.devices.controller.dtos.ModifyDeviceServicesRequest.Action;
+import com.example.rmm.devices.controller.dtos.SaveDeviceRequest;
+import com.example.rmm.devices.controller.dtos.Type;
+import com.example.rmm.devices.service.LocalCache;
+import io.restassured.RestAssured;
+import org.junit.jupiter.api.*;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.web.server.LocalServerPort;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import java.util.Set;
+
+import static io.restassured.RestAssured.*;
+import static io.restassured.http.ContentType.JSON;
+import static java.lang.String.format;
+import static org.hamcrest.Matchers.*;
+import static org.junit.jupiter.api.TestInstance.Lifecycle.PER_CLASS;
+import static org.springframework.boot.test.context.SpringBootTest.WebEnvironment.RANDOM_PORT;
+
+@TestInstance(PER_CLASS)
+@SpringBootTest(webEnvironment = RANDOM_PORT)
+class CustomerControllerTest {
+
+    public static final int OK = 200;
+    public static final long CUSTOMER_ID = 1L;
+    public static final long WINDOWS_ANTIVIRUS = 2L;
+
+    @LocalServerPort
+    private int port;
+
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    @Autowired
+    private LocalCache cache;
+
+    @BeforeAll
+    public void beforeAll() {
+        RestAssured.port = port;
+    }
+
+    @BeforeEach
+    public void beforeEach() {
+        cache.clear();
+    }
+
+    @AfterEach
+    public void afterEach() {
+        deleteAllFromTable("device");
+        deleteAllFromTable("customer_subscription");
+    }
+
+    @Test
+    void shouldReturnZeroForCustomerWithoutDevices() {
+        when().
+                get("/customers/{customerId}/cost", CUSTOMER_ID).
+        then().
+                statusCode(OK)
+                .body(
+                        "customerId", equalTo((int) CUSTOMER_ID),
+                        "servicesCost", equalTo(0.0f)
+                );
+    }
+
+    @Test
+    void shouldKeepTheCustomerCostUpToDate() {
+        // Save a Windows and a Mac for the customer, and a device for another customer
+        final int windowsId = saveDevice(new SaveDeviceRequest("Windows1", Type.WINDOWS_SERVER, CUSTOMER_ID));
+        final int macId = saveDevice(new SaveDeviceRequest("Mac1", Type.MAC, CUSTOMER_ID));
+        saveDevice(new SaveDeviceRequest("Mac1", Type.MAC, CUSTOMER_ID + 1));
+
+        // Validate the total is computed from the base services - $4 per device
+        when().get("/customers/{customerId}/cost", CUSTOMER_ID).then().statusCode(OK).body("servicesCost", equalTo(8.0f));
+
+        // Add the Windows antivirus ($5) and validate the total is adjusted
+        given().
+                contentType(JSON).
+                body(new ModifyDeviceServicesRequest(Set.of(WINDOWS_ANTIVIRUS), Action.ADD)).
+        when().
+                post("/devices/{id}/services", windowsId).
+        then().
+                statusCode(OK);
+        when().get("/customers/{customerId}/cost", CUSTOMER_ID).then().statusCode(OK).body("servicesCost", equalTo(13.0f));
+
+        // Delete the Mac and validate its cost is subtracted
+        when().delete("/devices/{id}", macId).then().statusCode(OK);
+        when().get("/customers/{customerId}/cost", CUSTOMER_ID).then().statusCode(OK).body("servicesCost", equalTo(9.0f));
+    }
+
+    private void deleteAllFromTable(final String tableName) {
+        jdbcTemplate.execute(format("DELETE FROM %s", tableName));
+    }
+
+    private int saveDevice(final SaveDeviceRequest request) {
+        return given().
+                        contentType(JSON).
+                        body(request).
+                when().
+                        post("/devices").
+                then().
+                        statusCode(OK).
+                extract().
+                        path("id");
+    }
+}
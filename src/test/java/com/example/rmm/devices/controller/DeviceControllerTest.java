@@ -1,18 +1,36 @@
 package com.example.rmm.devices.controller;
 
+import com.example.rmm.common.persistence.SqlStatementCounter;
+import com.example.rmm.common.persistence.SqlStatementsRecorder;
 import com.example.rmm.devices.controller.dtos.ModifyDeviceServicesRequest;
 import com.example.rmm.devices.controller.dtos.ModifyDeviceServicesRequest.Action;
+import com.example.rmm.devices.controller.dtos.ModifyDevicesServicesRequest;
 import com.example.rmm.devices.controller.dtos.SaveDeviceRequest;
+import com.example.rmm.devices.controller.dtos.SaveDevicesBatchRequest;
 import com.example.rmm.devices.controller.dtos.Type;
+import com.example.rmm.devices.service.DeviceCostEngine;
+import com.example.rmm.devices.service.DeviceCostSnapshot;
+import com.example.rmm.devices.service.DeviceCostWarmUp;
+import com.example.rmm.devices.service.DeviceSubscriptionIndex;
 import com.example.rmm.devices.service.LocalCache;
+import com.example.rmm.services.controller.dtos.SaveServiceRequest;
 import io.restassured.RestAssured;
+import jakarta.persistence.EntityManagerFactory;
 import org.junit.jupiter.api.*;
+import org.junit.jupiter.api.io.TempDir;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.boot.test.web.server.LocalServerPort;
+import org.springframework.context.annotation.Import;
 import org.springframework.jdbc.core.JdbcTemplate;
 
+import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
 import java.util.stream.IntStream;
 
 import static io.restassured.RestAssured.*;
@@ -26,7 +44,9 @@ import static org.junit.jupiter.api.TestInstance.Lifecycle.PER_CLASS;
 import static org.springframework.boot.test.context.SpringBootTest.WebEnvironment.RANDOM_PORT;
 
 @TestInstance(PER_CLASS)
-@SpringBootTest(webEnvironment = RANDOM_PORT)
+// The change marker of the cost snapshot is only maintained with a snapshot file
+@SpringBootTest(webEnvironment = RANDOM_PORT, properties = "rmm.cache.device-cost.snapshot.file=${java.io.tmpdir}/rmm-test/device-cost.snapshot")
+@Import(SqlStatementsRecorder.class)
 class DeviceControllerTest {
 
     private static final String NAME_REQUIRED = "The System Name is required";
@@ -37,6 +57,7 @@ class DeviceControllerTest {
     public static final int OK = 200;
     public static final int CONFLICT = 409;
     public static final int NOT_FOUND = 404;
+    public static final int NOT_MODIFIED = 304;
     public static final int BAD_REQUEST = 400;
     public static final String BASE_SERVICE_NAME = "Device of any type";
     public static final int BASE_SERVICE_ID = 1;
@@ -56,15 +77,38 @@ class DeviceControllerTest {
     @Autowired
     private LocalCache cache;
 
+    @Autowired
+    private DeviceSubscriptionIndex subscriptionIndex;
+
+    @Autowired
+    private DeviceCostWarmUp costWarmUp;
+
+    @Autowired
+    private DeviceCostEngine costEngine;
+
+    @Autowired
+    private DeviceCostSnapshot costSnapshot;
+
+    @Autowired
+    private EntityManagerFactory entityManagerFactory;
+
+    @Autowired
+    private SqlStatementsRecorder sqlStatementsRecorder;
+
+    private SqlStatementCounter sqlStatements;
+
     @BeforeAll
     public void beforeAll() {
         RestAssured.port = port;
+        sqlStatements = new SqlStatementCounter(entityManagerFactory, sqlStatementsRecorder);
     }
 
     @AfterEach
     public void afterEach() {
         deleteAllFromTable("device");
+        deleteAllFromTable("customer_subscription");
         cache.clear();
+        subscriptionIndex.clear();
     }
 
     @Nested
@@ -79,7 +123,7 @@ class DeviceControllerTest {
                     post("/devices").
             then().
                     statusCode(OK)
-                    .body("id", equalTo(1));
+                    .body("id", notNullValue());
         }
 
         @Test
@@ -100,18 +144,81 @@ class DeviceControllerTest {
         }
     }
 
+    @Nested
+    class SaveDevicesBatch {
+
+        @Test
+        void shouldReportTheResultOfEachDevice() {
+            // Save a device before the batch
+            given().contentType(JSON).body(TEST_DEVICE).post("/devices").then().statusCode(OK);
+
+            // Send a batch with valid, invalid, already existing and repeated devices
+            final var mac = new SaveDeviceRequest("Mac1", Type.MAC, 1L);
+            final var request = new SaveDevicesBatchRequest(List.of(
+                    mac,
+                    SaveDeviceRequest.builder().type(Type.LINUX).customerId(1L).build(),
+                    TEST_DEVICE,
+                    mac,
+                    new SaveDeviceRequest("Ubuntu1", Type.LINUX, 2L)
+            ));
+
+            final int macId =
+                    given().
+                            contentType(JSON).
+                            body(request).
+                    when().
+                            post("/devices/batch").
+                    then().
+                            statusCode(OK)
+                            .body(
+                                    "saved", equalTo(2),
+                                    "failed", equalTo(3),
+                                    "results.index", contains(0, 1, 2, 3, 4),
+                                    "results[1].errors", contains(NAME_REQUIRED),
+                                    "results[2].errors", contains("Provided data is violating a data integrity constraint"),
+                                    "results[3].errors", contains("Provided data is violating a data integrity constraint"),
+                                    "results[4].id", notNullValue()
+                            ).
+                    extract().
+                            path("results[0].id");
+
+            // Validate the saved devices have their base service
+            when().
+                    get("/devices/{id}", macId).
+            then().
+                    statusCode(OK)
+                    .body(
+                            "systemName", equalTo(mac.systemName()),
+                            "servicesCost", equalTo(BASE_SERVICE_COST),
+                            "services.id", contains(BASE_SERVICE_ID)
+                    );
+        }
+
+        @Test
+        void shouldFailForEmptyBatch() {
+            given().
+                    contentType(JSON).
+                    body(new SaveDevicesBatchRequest(List.of())).
+            when().
+                    post("/devices/batch").
+            then().
+                    statusCode(BAD_REQUEST)
+                    .body("errors", contains("At least one device must be provided"));
+        }
+    }
+
     @Test
     void shouldRetrieveFullDeviceDataById() {
         // Save the device
-        given().contentType(JSON).body(TEST_DEVICE).post("/devices");
+        final int id = saveDevice(TEST_DEVICE);
 
         // Validate it's retrieved with its expected properties
         when().
-                get("/devices/{id}", 1).
+                get("/devices/{id}", id).
         then().
                 statusCode(OK)
                 .body(
-                        "id", equalTo(1),
+                        "id", equalTo(id),
                         "systemName", equalTo(TEST_DEVICE.systemName()),
                         "customerId", equalTo(TEST_DEVICE.customerId().intValue()),
                         "servicesCost", equalTo(BASE_SERVICE_COST),
@@ -145,20 +252,86 @@ class DeviceControllerTest {
                 .body("$.size()", equalTo(2));
     }
 
+    @Test
+    void shouldPaginateAndFilterAllDevices() {
+        // Save three devices
+        final int mac1 = saveDevice(new SaveDeviceRequest("Mac1", Type.MAC, 1L));
+        final int mac2 = saveDevice(new SaveDeviceRequest("Mac2", Type.MAC, 2L));
+        final int ubuntu1 = saveDevice(new SaveDeviceRequest("Ubuntu1", Type.LINUX, 1L));
+
+        // Validate the first page links to the next one
+        given().
+                queryParam("limit", 2).
+        when().
+                get("/devices").
+        then().
+                statusCode(OK)
+                .header("Link", containsString("afterId=" + mac2))
+                .body("id", contains(mac1, mac2));
+
+        // Validate the last page does NOT link to another one
+        given().
+                queryParam("limit", 2).
+                queryParam("afterId", mac2).
+        when().
+                get("/devices").
+        then().
+                statusCode(OK)
+                .header("Link", nullValue())
+                .body("id", contains(ubuntu1));
+
+        // Validate the filters are applied
+        given().
+                queryParam("customerId", 1).
+                queryParam("type", Type.MAC).
+        when().
+                get("/devices").
+        then().
+                statusCode(OK)
+                .body("id", contains(mac1));
+    }
+
+    @Test
+    void shouldStreamAllDevices() {
+        // Save devices for two different customers
+        final int mac1 = saveDevice(new SaveDeviceRequest("Mac1", Type.MAC, 1L));
+        saveDevice(new SaveDeviceRequest("Mac2", Type.MAC, 2L));
+        final int ubuntu1 = saveDevice(new SaveDeviceRequest("Ubuntu1", Type.LINUX, 1L));
+
+        // Validate one JSON document per line is returned for the customer devices
+        final var lines =
+                given().
+                        queryParam("customerId", 1).
+                when().
+                        get("/devices/stream").
+                then().
+                        statusCode(OK)
+                        .contentType("application/x-ndjson").
+                extract().
+                        asString()
+                        .lines()
+                        .toList();
+
+        assertThat(lines).containsExactly(
+                "{\"id\":" + mac1 + ",\"systemName\":\"Mac1\",\"type\":\"MAC\"}",
+                "{\"id\":" + ubuntu1 + ",\"systemName\":\"Ubuntu1\",\"type\":\"LINUX\"}"
+        );
+    }
+
     @Test
     void shouldDeleteTheDevice() {
         // Save the device
-        given().contentType(JSON).body(TEST_DEVICE).post("/devices");
+        final int id = saveDevice(TEST_DEVICE);
 
         // Verify it was persisted
-        when().get("/devices/{id}", 1).then().statusCode(OK).body("id", equalTo(1));
+        when().get("/devices/{id}", id).then().statusCode(OK).body("id", equalTo(id));
 
         // Delete the device
-        when().delete("/devices/{id}", 1).then().statusCode(OK);
+        when().delete("/devices/{id}", id).then().statusCode(OK);
 
         // Verify it was removed - Not found
         when().
-                get("/devices/{id}", 1).
+                get("/devices/{id}", id).
         then().
                 statusCode(NOT_FOUND)
                 .body("errors.size()", equalTo(1))
@@ -217,7 +390,7 @@ class DeviceControllerTest {
         @Test
         void shouldAddServicesToDevice() {
             // Save the device
-            given().contentType(JSON).body(TEST_DEVICE).post("/devices");
+            final int id = saveDevice(TEST_DEVICE);
 
             // Create the request to add services
             final var request = buildModifyDeviceServicesRequest(Action.ADD, WINDOWS_ANTIVIRUS, SCREEN_SHARE);
@@ -227,13 +400,13 @@ class DeviceControllerTest {
                     contentType(JSON).
                     body(request).
             when().
-                    post("/devices/{id}/services", 1).
+                    post("/devices/{id}/services", id).
             then().
                     statusCode(OK);
 
             // Validate it returns the persisted services + the base service
             when().
-                    get("/devices/{id}", 1).
+                    get("/devices/{id}", id).
             then().
                     statusCode(OK)
                     .body(
@@ -249,25 +422,25 @@ class DeviceControllerTest {
         @Test
         void shouldRemoveServicesToDevice() {
             // Save the device
-            given().contentType(JSON).body(TEST_DEVICE).post("/devices");
+            final int id = saveDevice(TEST_DEVICE);
 
             // Create the request to ADD services
             final var addServicesRequest =
                     buildModifyDeviceServicesRequest(Action.ADD, WINDOWS_ANTIVIRUS, SCREEN_SHARE, BACKUP);
 
             // Send the request to add some services
-            given().contentType(JSON).body(addServicesRequest).post("/devices/{id}/services", 1);
+            given().contentType(JSON).body(addServicesRequest).post("/devices/{id}/services", id);
 
             // Create the request to REMOVE services
             final var removeServicesRequest =
                     buildModifyDeviceServicesRequest(Action.REMOVE, WINDOWS_ANTIVIRUS, SCREEN_SHARE);
 
             // Send the request to remove some services
-            given().contentType(JSON).body(removeServicesRequest).post("/devices/{id}/services", 1);
+            given().contentType(JSON).body(removeServicesRequest).post("/devices/{id}/services", id);
 
             // Validate it does NOT return the removed services
             when().
-                    get("/devices/{id}", 1).
+                    get("/devices/{id}", id).
             then().
                     statusCode(OK)
                     .body(
@@ -276,6 +449,99 @@ class DeviceControllerTest {
                     );
         }
 
+        @Test
+        void shouldNotLoseConcurrentModifications() throws Exception {
+            // Save the device
+            final int id = saveDevice(TEST_DEVICE);
+
+            // Add a different service to the device from each thread at the same time
+            final var servicesIds = List.of(WINDOWS_ANTIVIRUS, MAC_ANTIVIRUS, BACKUP, SCREEN_SHARE);
+            final var executor = Executors.newFixedThreadPool(servicesIds.size());
+            final var statusCodes = executor.invokeAll(servicesIds.stream().<Callable<Integer>>map(serviceId -> () ->
+                    given().contentType(JSON).body(buildModifyDeviceServicesRequest(Action.ADD, serviceId))
+                           .post("/devices/{id}/services", id).statusCode()
+            ).toList());
+            executor.shutdown();
+
+            // Every modification is either saved or rejected as a conflict, none is lost
+            final var savedServicesIds = new ArrayList<Integer>(List.of(BASE_SERVICE_ID));
+            for (int i = 0; i < servicesIds.size(); i++) {
+                final int statusCode = statusCodes.get(i).get();
+                assertThat(statusCode).isIn(OK, CONFLICT);
+                if (statusCode == OK) savedServicesIds.add(servicesIds.get(i));
+            }
+            final var services = when().get("/devices/{id}", id).then().statusCode(OK).extract().jsonPath();
+            assertThat(services.getList("services.id", Integer.class)).containsExactlyInAnyOrderElementsOf(savedServicesIds);
+
+            // And the cached cost agrees with the saved services
+            assertThat(services.getDouble("servicesCost"))
+                    .isEqualTo(services.getList("services.price", Float.class).stream().mapToDouble(Float::doubleValue).sum());
+        }
+
+        @Test
+        void shouldInvalidateTheCostWhenAServiceIsDeleted() {
+            // Save the device and a new service
+            final int id = saveDevice(TEST_DEVICE);
+            final int serviceId =
+                    given().
+                            contentType(JSON).
+                            body(new SaveServiceRequest("Remote shell", 2.0f)).
+                    when().
+                            post("/services").
+                    then().
+                            statusCode(OK).
+                    extract().
+                            path("id");
+
+            // Subscribe the device to the new service
+            given().contentType(JSON).body(
+                    buildModifyDeviceServicesRequest(Action.ADD, serviceId)
+            ).post("/devices/{id}/services", id);
+
+            // Delete the service
+            when().delete("/services/{id}", serviceId).then().statusCode(OK);
+
+            // Validate the cost does NOT include the deleted service anymore
+            when().
+                    get("/devices/{id}", id).
+            then().
+                    statusCode(OK)
+                    .body(
+                            "servicesCost", equalTo(BASE_SERVICE_COST),
+                            "services.id", contains(BASE_SERVICE_ID)
+                    );
+        }
+
+        @Test
+        void shouldAdjustTheCostsWhenAServicePriceChanges() {
+            // Save two devices of a customer, only one subscribed to the backup ($3)
+            final int server1Id = saveDevice(new SaveDeviceRequest("Server1", Type.WINDOWS_SERVER, 1L));
+            final int server2Id = saveDevice(new SaveDeviceRequest("Server2", Type.WINDOWS_SERVER, 1L));
+            given().contentType(JSON).body(
+                    buildModifyDeviceServicesRequest(Action.ADD, BACKUP)
+            ).post("/devices/{id}/services", server1Id);
+            when().get("/devices/{id}", server1Id).then().statusCode(OK).body("servicesCost", equalTo(7f));
+            when().get("/customers/{id}/cost", 1).then().statusCode(OK).body("servicesCost", equalTo(11f));
+
+            try {
+                // Raise the backup price
+                given().
+                        contentType(JSON).
+                        body(Map.of("price", 5.0f)).
+                when().
+                        put("/services/{id}", BACKUP).
+                then().
+                        statusCode(OK);
+
+                // Only the subscribed device and its customer total changed, by the price delta
+                when().get("/devices/{id}", server1Id).then().statusCode(OK).body("servicesCost", equalTo(9f));
+                when().get("/devices/{id}", server2Id).then().statusCode(OK).body("servicesCost", equalTo(4f));
+                when().get("/customers/{id}/cost", 1).then().statusCode(OK).body("servicesCost", equalTo(13f));
+            } finally {
+                given().contentType(JSON).body(Map.of("price", 3.0f)).put("/services/{id}", BACKUP).then().statusCode(OK);
+            }
+        }
+
         @Test
         void shouldCalculateTotalCostForCustomer() {
             /*
@@ -303,41 +569,40 @@ class DeviceControllerTest {
             final var mac1 = new SaveDeviceRequest("Mac1", Type.MAC, customerId);
             final var mac2 = new SaveDeviceRequest("Mac2", Type.MAC, customerId);
             final var mac3 = new SaveDeviceRequest("Mac3", Type.MAC, customerId);
-            given().contentType(JSON).body(windows1).post("/devices");
-            given().contentType(JSON).body(windows2).post("/devices");
-            given().contentType(JSON).body(mac1).post("/devices");
-            given().contentType(JSON).body(mac2).post("/devices");
-            given().contentType(JSON).body(mac3).post("/devices");
+            final int windows1Id = saveDevice(windows1);
+            final int windows2Id = saveDevice(windows2);
+            final int mac1Id = saveDevice(mac1);
+            final int mac2Id = saveDevice(mac2);
+            final int mac3Id = saveDevice(mac3);
 
             // Add services to Windows1
             given().contentType(JSON).body(
                     buildModifyDeviceServicesRequest(Action.ADD, WINDOWS_ANTIVIRUS, SCREEN_SHARE, BACKUP)
-            ).post("/devices/{id}/services", 1);
+            ).post("/devices/{id}/services", windows1Id);
 
             // Add services to Windows2
             given().contentType(JSON).body(
                     buildModifyDeviceServicesRequest(Action.ADD, WINDOWS_ANTIVIRUS, SCREEN_SHARE)
-            ).post("/devices/{id}/services", 2);
+            ).post("/devices/{id}/services", windows2Id);
 
             // Add services to Mac1
             given().contentType(JSON).body(
                     buildModifyDeviceServicesRequest(Action.ADD, MAC_ANTIVIRUS, SCREEN_SHARE, BACKUP)
-            ).post("/devices/{id}/services", 3);
+            ).post("/devices/{id}/services", mac1Id);
 
             // Add services to Mac2
             given().contentType(JSON).body(
                     buildModifyDeviceServicesRequest(Action.ADD, MAC_ANTIVIRUS, SCREEN_SHARE, BACKUP)
-            ).post("/devices/{id}/services", 4);
+            ).post("/devices/{id}/services", mac2Id);
 
             // Add services to Mac3
             given().contentType(JSON).body(
                     buildModifyDeviceServicesRequest(Action.ADD, MAC_ANTIVIRUS)
-            ).post("/devices/{id}/services", 5);
+            ).post("/devices/{id}/services", mac3Id);
 
             // Sum the cost for all the devices cached
-            // From device ID 1 (inclusive) to 6 (exclusive) - IDs: 1, 2, 3, 4, 5
             final var devicesServicesCost =
-                    IntStream.range(1, 6)
+                    IntStream.of(windows1Id, windows2Id, mac1Id, mac2Id, mac3Id)
                              .boxed()
                              .mapToDouble(id -> cache.get((long) id, () -> 0.0))
                              .sum();
@@ -347,6 +612,297 @@ class DeviceControllerTest {
         }
     }
 
+    @Nested
+    class ModifyDevicesServices {
+
+        @Test
+        void shouldAddAndRemoveServicesToTheMatchingDevices() {
+            // Save three devices for a customer and one for another customer
+            final int server1Id = saveDevice(new SaveDeviceRequest("Server1", Type.WINDOWS_SERVER, 1L));
+            final int server2Id = saveDevice(new SaveDeviceRequest("Server2", Type.WINDOWS_SERVER, 1L));
+            final int macId = saveDevice(new SaveDeviceRequest("Mac1", Type.MAC, 1L));
+            final int otherServerId = saveDevice(new SaveDeviceRequest("Server1", Type.WINDOWS_SERVER, 2L));
+            when().get("/customers/{id}/cost", 1).then().statusCode(OK).body("servicesCost", equalTo(12f));
+
+            // Add the backup to the customer Windows servers
+            given().
+                    contentType(JSON).
+                    body(new ModifyDevicesServicesRequest(1L, Type.WINDOWS_SERVER, null, Set.of((long) BACKUP), Action.ADD)).
+            when().
+                    post("/devices/services").
+            then().
+                    statusCode(OK)
+                    .body("devices", equalTo(2), "links", equalTo(2));
+
+            // Only the customer Windows servers got the backup, and the customer total includes it
+            when().get("/devices/{id}", server1Id).then().statusCode(OK).body("servicesCost", equalTo(7f));
+            when().get("/devices/{id}", server2Id).then().statusCode(OK).body("servicesCost", equalTo(7f));
+            when().get("/devices/{id}", macId).then().statusCode(OK).body("servicesCost", equalTo(4f));
+            when().get("/devices/{id}", otherServerId).then().statusCode(OK).body("servicesCost", equalTo(4f));
+            when().get("/customers/{id}/cost", 1).then().statusCode(OK).body("servicesCost", equalTo(18f));
+
+            // Remove the base service and the backup from a server and the Mac, the base service is kept
+            given().
+                    contentType(JSON).
+                    body(new ModifyDevicesServicesRequest(
+                            null, null, Set.of((long) server1Id, (long) macId), Set.of((long) BASE_SERVICE_ID, (long) BACKUP), Action.REMOVE
+                    )).
+            when().
+                    post("/devices/services").
+            then().
+                    statusCode(OK)
+                    .body("devices", equalTo(2), "links", equalTo(1));
+            when().
+                    get("/devices/{id}", server1Id).
+            then().
+                    statusCode(OK)
+                    .body("services.id", contains(BASE_SERVICE_ID), "servicesCost", equalTo(4f));
+        }
+
+        @Test
+        void shouldFailWhenNoDevicesFilterIsProvided() {
+            given().
+                    contentType(JSON).
+                    body(new ModifyDevicesServicesRequest(null, null, Set.of(), Set.of((long) BACKUP), Action.ADD)).
+            when().
+                    post("/devices/services").
+            then().
+                    statusCode(BAD_REQUEST)
+                    .body("errors", contains("A Customer ID, a Type or the devices IDs must be provided"));
+        }
+    }
+
+    @Nested
+    class SqlStatementsCount {
+
+        @Test
+        void shouldFindByIdWithASingleStatement() {
+            // Save the device with some services
+            final int id = saveDevice(TEST_DEVICE);
+            given().contentType(JSON).body(
+                    buildModifyDeviceServicesRequest(Action.ADD, WINDOWS_ANTIVIRUS, BACKUP)
+            ).post("/devices/{id}/services", id);
+            sqlStatements.reset();
+
+            // Only the device is fetched, its services come from the subscriptions index
+            when().get("/devices/{id}", id).then().statusCode(OK).body("services.size()", equalTo(3));
+            sqlStatements.assertStatementCount(1);
+        }
+
+        @Test
+        void shouldFindByIdWithTwoStatementsWhenNotIndexed() {
+            // Save the device and drop it from the subscriptions index
+            final int id = saveDevice(TEST_DEVICE);
+            subscriptionIndex.remove((long) id);
+            sqlStatements.reset();
+
+            // The device is fetched for its ETag, then along with its services
+            when().get("/devices/{id}", id).then().statusCode(OK).body("services.size()", equalTo(1));
+            sqlStatements.assertStatementCount(2);
+        }
+
+        @Test
+        void shouldFindAllWithASingleStatement() {
+            // Save two devices
+            given().contentType(JSON).body(new SaveDeviceRequest("Mac1", Type.MAC, 1L)).post("/devices");
+            given().contentType(JSON).body(new SaveDeviceRequest("Mac2", Type.MAC, 1L)).post("/devices");
+            sqlStatements.reset();
+
+            // The devices services are NOT loaded to list the devices, nor the devices entities
+            when().get("/devices").then().statusCode(OK).body("$.size()", equalTo(2));
+            sqlStatements.assertStatementCount(1);
+            sqlStatements.assertEntityLoadCount(0);
+        }
+
+        @Test
+        void shouldSaveWithFourStatements() {
+            // Save a first device of the customer, so that its subscription to the base service exists
+            saveDevice(new SaveDeviceRequest("Server1", Type.WINDOWS_SERVER, 1L));
+            sqlStatements.reset();
+
+            // The change marker, the device, its base service link and the customer subscription update
+            saveDevice(new SaveDeviceRequest("Server2", Type.WINDOWS_SERVER, 1L));
+            sqlStatements.assertStatementCount(4);
+        }
+
+        @Test
+        void shouldSaveABatchWithSixStatements() {
+            // Save a first device of the customer, so that its subscription to the base service exists
+            saveDevice(new SaveDeviceRequest("Server1", Type.WINDOWS_SERVER, 1L));
+            sqlStatements.reset();
+
+            // The change marker, the devices batch within its savepoint, the links batch and the customer subscriptions batch
+            given().
+                    contentType(JSON).
+                    body(new SaveDevicesBatchRequest(List.of(
+                            new SaveDeviceRequest("Mac1", Type.MAC, 1L),
+                            new SaveDeviceRequest("Mac2", Type.MAC, 1L)
+                    ))).
+            when().
+                    post("/devices/batch").
+            then().
+                    statusCode(OK)
+                    .body("saved", equalTo(2));
+            sqlStatements.assertStatementCount(6);
+        }
+
+        @Test
+        void shouldModifyTheServicesWithFiveStatements() {
+            // Subscribe a first device of the customer to the backup, so that the customer subscription exists
+            final int server1Id = saveDevice(new SaveDeviceRequest("Server1", Type.WINDOWS_SERVER, 1L));
+            final int server2Id = saveDevice(new SaveDeviceRequest("Server2", Type.WINDOWS_SERVER, 1L));
+            given().contentType(JSON).body(
+                    buildModifyDeviceServicesRequest(Action.ADD, BACKUP)
+            ).post("/devices/{id}/services", server1Id).then().statusCode(OK);
+            sqlStatements.reset();
+
+            // The change marker, the device with its services, its version, the new link and the customer subscription update
+            given().contentType(JSON).body(
+                    buildModifyDeviceServicesRequest(Action.ADD, BACKUP)
+            ).post("/devices/{id}/services", server2Id).then().statusCode(OK);
+            sqlStatements.assertStatementCount(5);
+        }
+
+        @Test
+        void shouldModifyTheDevicesServicesInBulkWithTwelveStatements() {
+            // Save two devices of the customer
+            saveDevice(new SaveDeviceRequest("Server1", Type.WINDOWS_SERVER, 1L));
+            saveDevice(new SaveDeviceRequest("Server2", Type.WINDOWS_SERVER, 1L));
+            sqlStatements.reset();
+
+            // The devices IDs and the change marker, the links to add, the devices versions, the links batch within its
+            // savepoint, the customer subscription update then insert within its savepoint, and the devices services
+            given().
+                    contentType(JSON).
+                    body(new ModifyDevicesServicesRequest(1L, null, null, Set.of((long) BACKUP), Action.ADD)).
+            when().
+                    post("/devices/services").
+            then().
+                    statusCode(OK)
+                    .body("links", equalTo(2));
+            sqlStatements.assertStatementCount(12);
+        }
+
+        @Test
+        void shouldDeleteWithFiveStatements() {
+            final int id = saveDevice(TEST_DEVICE);
+            sqlStatements.reset();
+
+            // The change marker, the device version locking it, its services, the device and the customer subscription update
+            when().delete("/devices/{id}", id).then().statusCode(OK);
+            sqlStatements.assertStatementCount(5);
+            sqlStatements.assertEntityLoadCount(0);
+        }
+    }
+
+    @Test
+    void shouldWarmUpTheCostOfTheDevicesNotCached() throws Exception {
+        // Save two devices, one of them with the backup, and forget their costs as after a restart
+        final int server1Id = saveDevice(new SaveDeviceRequest("Server1", Type.WINDOWS_SERVER, 1L));
+        final int server2Id = saveDevice(new SaveDeviceRequest("Server2", Type.WINDOWS_SERVER, 2L));
+        given().contentType(JSON).body(
+                buildModifyDeviceServicesRequest(Action.ADD, BACKUP)
+        ).post("/devices/{id}/services", server1Id);
+        cache.clear();
+
+        // Both costs are computed by the warm-up, so they are read from the cache
+        assertThat(costWarmUp.warmUp()).isEqualTo(2);
+        assertThat(cache.get((long) server1Id, () -> 0.0)).isEqualTo(7.0);
+        assertThat(cache.get((long) server2Id, () -> 0.0)).isEqualTo(4.0);
+
+        // And the application is ready
+        when().get("/actuator/health/readiness").then().statusCode(OK).body("status", equalTo("UP"));
+    }
+
+    @Test
+    void shouldComputeTheCostsOfIndexedAndNotIndexedDevices() {
+        // Save two devices with the backup, and drop one of them from the subscriptions index
+        final int indexedId = saveDevice(new SaveDeviceRequest("Server1", Type.WINDOWS_SERVER, 1L));
+        final int notIndexedId = saveDevice(new SaveDeviceRequest("Server2", Type.WINDOWS_SERVER, 1L));
+        given().contentType(JSON).body(
+                new ModifyDevicesServicesRequest(1L, null, null, Set.of((long) BACKUP), Action.ADD)
+        ).post("/devices/services").then().statusCode(OK);
+        subscriptionIndex.remove((long) notIndexedId);
+        sqlStatements.reset();
+
+        // The indexed device is computed from the index, the other one by a single aggregate
+        assertThat(costEngine.computeCosts(List.of((long) indexedId, (long) notIndexedId, -1L)))
+                .containsEntry((long) indexedId, 7.0)
+                .containsEntry((long) notIndexedId, 7.0)
+                .containsEntry(-1L, 0.0);
+        sqlStatements.assertStatementCount(1);
+    }
+
+    @Test
+    void shouldLoadTheCostSnapshotUntilADeviceChanges(@TempDir final Path directory) {
+        // Save a device with the backup, read its cost so it is cached, and write it to the snapshot
+        final int id = saveDevice(TEST_DEVICE);
+        given().contentType(JSON).body(
+                buildModifyDeviceServicesRequest(Action.ADD, BACKUP)
+        ).post("/devices/{id}/services", id);
+        cache.clear();
+        when().get("/devices/{id}", id).then().statusCode(OK).body("servicesCost", equalTo(7f));
+        final var file = directory.resolve("device-cost.snapshot");
+        assertThat(costSnapshot.write(file)).isEqualTo(1);
+
+        // Once the costs are forgotten, as after a restart, the snapshot brings them back
+        cache.clear();
+        assertThat(costSnapshot.load(file)).isEqualTo(1);
+        assertThat(cache.get((long) id, () -> 0.0)).isEqualTo(7.0);
+
+        // Once another device is saved, the snapshot may be outdated and is ignored
+        saveDevice(new SaveDeviceRequest("Server2", Type.WINDOWS_SERVER, 1L));
+        cache.clear();
+        assertThat(costSnapshot.load(file)).isZero();
+    }
+
+    @Test
+    void shouldAnswerNotModifiedUntilTheDeviceChanges() {
+        // Find the device and get its ETag
+        final int id = saveDevice(TEST_DEVICE);
+        final var eTag = when().get("/devices/{id}", id).then().statusCode(OK).header("Cache-Control", "no-cache")
+                               .extract().header("ETag");
+
+        // The device did not change, so it's not sent again
+        given().header("If-None-Match", eTag).when().get("/devices/{id}", id).then().statusCode(NOT_MODIFIED);
+
+        // Once its services change, the device is sent with a new ETag
+        given().contentType(JSON).body(buildModifyDeviceServicesRequest(Action.ADD, BACKUP)).post("/devices/{id}/services", id);
+        given().
+                header("If-None-Match", eTag).
+        when().
+                get("/devices/{id}", id).
+        then().
+                statusCode(OK)
+                .header("ETag", not(equalTo(eTag)))
+                .body("services.size()", equalTo(2));
+    }
+
+    @Test
+    void shouldPublishCacheAndEndpointMetrics() {
+        // Save and find a device
+        final int id = saveDevice(TEST_DEVICE);
+        when().get("/devices/{id}", id).then().statusCode(OK);
+
+        // Validate the device cost cache metrics are published
+        given().
+                queryParam("tag", "cache:device-cost").
+        when().
+                get("/actuator/metrics/cache.gets").
+        then().
+                statusCode(OK)
+                .body("availableTags.tag", hasItem("result"));
+
+        // Validate the endpoint latency is measured
+        given().
+                queryParam("tag", "uri:/devices/{id}").
+        when().
+                get("/actuator/metrics/http.server.requests").
+        then().
+                statusCode(OK)
+                .body("measurements.find { it.statistic == 'COUNT' }.value", greaterThanOrEqualTo(1.0f));
+    }
+
     private static ModifyDeviceServicesRequest buildModifyDeviceServicesRequest(
             final Action action,
             final int... services
@@ -361,8 +917,19 @@ class DeviceControllerTest {
         );
     }
 
+    private int saveDevice(final SaveDeviceRequest request) {
+        return given().
+                        contentType(JSON).
+                        body(request).
+                when().
+                        post("/devices").
+                then().
+                        statusCode(OK).
+                extract().
+                        path("id");
+    }
+
     private void deleteAllFromTable(final String tableName) {
         jdbcTemplate.execute(format("DELETE FROM %s", tableName));
-        jdbcTemplate.execute(format("ALTER TABLE %s ALTER COLUMN id RESTART WITH 1", tableName));
     }
 }
\ No newline at end of file
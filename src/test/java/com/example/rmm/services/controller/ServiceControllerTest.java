@@ -1,6 +1,8 @@
 package com.example.rmm.services.controller;
 
 import com.example.rmm.services.controller.dtos.SaveServiceRequest;
+import com.example.rmm.services.repository.Service;
+import com.example.rmm.services.service.ServiceCatalog;
 import io.restassured.RestAssured;
 import org.junit.jupiter.api.*;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -8,9 +10,12 @@ import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.boot.test.web.server.LocalServerPort;
 import org.springframework.jdbc.core.JdbcTemplate;
 
+import java.util.List;
+
 import static io.restassured.RestAssured.*;
 import static io.restassured.http.ContentType.JSON;
 import static java.lang.String.format;
+import static org.assertj.core.api.Assertions.assertThat;
 import static org.hamcrest.Matchers.*;
 import static org.junit.jupiter.api.TestInstance.Lifecycle.PER_CLASS;
 import static org.springframework.boot.test.context.SpringBootTest.WebEnvironment.RANDOM_PORT;
@@ -21,6 +26,7 @@ class ServiceControllerTest {
 
     public static final int OK = 200;
     public static final int CONFLICT = 409;
+    public static final int NOT_MODIFIED = 304;
     public static final SaveServiceRequest TEST_SERVICE = new SaveServiceRequest("Add Blocker", 12.0f);
 
     @LocalServerPort
@@ -29,6 +35,9 @@ class ServiceControllerTest {
     @Autowired
     private JdbcTemplate jdbcTemplate;
 
+    @Autowired
+    private ServiceCatalog serviceCatalog;
+
     @BeforeAll
     public void beforeAll() {
         RestAssured.port = port;
@@ -37,6 +46,7 @@ class ServiceControllerTest {
     @BeforeEach
     public void afterEach() {
         deleteAllFromTable("service");
+        serviceCatalog.refresh();
     }
 
     @Nested
@@ -51,7 +61,7 @@ class ServiceControllerTest {
                     post("/services").
             then().
                     statusCode(OK)
-                    .body("id", equalTo(1));
+                    .body("id", notNullValue());
         }
 
         @Test
@@ -80,8 +90,8 @@ class ServiceControllerTest {
         // Save two services
         final var service1 = new SaveServiceRequest("Add Blocker", 12.0f);
         final var service2 = new SaveServiceRequest("Screen Saver", 27.0f);
-        given().contentType(JSON).body(service1).post("/services");
-        given().contentType(JSON).body(service2).post("/services");
+        final int service1Id = saveService(service1);
+        final int service2Id = saveService(service2);
 
         // Validate that an array with size 2 is returned
         when().
@@ -90,7 +100,7 @@ class ServiceControllerTest {
                 statusCode(OK)
                 .body(
                         "$.size()", equalTo(2),
-                        "id", containsInAnyOrder(1, 2),
+                        "id", containsInAnyOrder(service1Id, service2Id),
                         "name", containsInAnyOrder("Add Blocker", "Screen Saver"),
                         "price", containsInAnyOrder(12.0f, 27.0f)
                 );
@@ -99,13 +109,13 @@ class ServiceControllerTest {
     @Test
     void shouldDeleteTheService() {
         // Save the service
-        given().contentType(JSON).body(TEST_SERVICE).post("/services");
+        final int id = saveService(TEST_SERVICE);
 
         // Verify it was persisted
-        when().get("/services").then().statusCode(OK).body("id", hasItem(1));
+        when().get("/services").then().statusCode(OK).body("id", hasItem(id));
 
         // Delete the service
-        when().delete("/services/{id}", 1).then().statusCode(OK);
+        when().delete("/services/{id}", id).then().statusCode(OK);
 
         // Verify it was removed
         when().
@@ -115,8 +125,52 @@ class ServiceControllerTest {
                 .body("errors.size()", equalTo(0));
     }
 
+    @Test
+    void shouldAnswerNotModifiedUntilTheServicesChange() {
+        // Get the services along with their ETag, they can be kept by the client for a while
+        saveService(TEST_SERVICE);
+        final var eTag = when().get("/services").then().statusCode(OK).header("Cache-Control", "max-age=30, must-revalidate")
+                               .extract().header("ETag");
+
+        // The services did not change, so they are not sent again
+        given().header("If-None-Match", eTag).when().get("/services").then().statusCode(NOT_MODIFIED);
+
+        // Once a service is saved, the services are sent with a new ETag
+        saveService(new SaveServiceRequest("Screen Saver", 27.0f));
+        given().
+                header("If-None-Match", eTag).
+        when().
+                get("/services").
+        then().
+                statusCode(OK)
+                .header("ETag", not(equalTo(eTag)))
+                .body("$.size()", equalTo(2));
+    }
+
+    @Test
+    void shouldRefreshTheCatalogWhenAServiceIsSavedOrDeleted() {
+        // Save the service, it is in the catalog right away
+        final long id = saveService(TEST_SERVICE);
+        assertThat(serviceCatalog.findAllById(List.of(id))).extracting(Service::getPrice).containsExactly(12.0f);
+
+        // Delete the service, it is no longer in the catalog
+        when().delete("/services/{id}", id).then().statusCode(OK);
+        assertThat(serviceCatalog.findAllById(List.of(id))).isEmpty();
+    }
+
+    private int saveService(final SaveServiceRequest request) {
+        return given().
+                        contentType(JSON).
+                        body(request).
+                when().
+                        post("/services").
+                then().
+                        statusCode(OK).
+                extract().
+                        path("id");
+    }
+
     private void deleteAllFromTable(final String tableName) {
         jdbcTemplate.execute(format("DELETE FROM %s", tableName));
-        jdbcTemplate.execute(format("ALTER TABLE %s ALTER COLUMN id RESTART WITH 1", tableName));
     }
 }
\ No newline at end of file